@@ -1,7 +1,17 @@
 package de.woerteler.persistent;
 
+import java.util.AbstractList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * The abstract base class for persistent sequences. It provides equality checks
@@ -47,6 +57,165 @@ public abstract class AbstractSequence<E> implements PersistentSequence<E> {
     };
   }
 
+  @Override
+  public Spliterator<E> spliterator() {
+    return Spliterators.spliterator(iterator(), size(),
+        Spliterator.ORDERED | Spliterator.IMMUTABLE);
+  }
+
+  @Override
+  public Stream<E> stream() {
+    return StreamSupport.stream(spliterator(), false);
+  }
+
+  @Override
+  public Stream<E> parallelStream() {
+    return StreamSupport.stream(spliterator(), true);
+  }
+
+  @Override
+  public void forEachChunk(final ChunkVisitor visitor) {
+    final ChunkBuffer buffer = new ChunkBuffer(visitor);
+    for(final E e : this) {
+      buffer.add(e);
+    }
+    buffer.flush();
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <A> A fold(final A init, final BiFunction<A, ? super E, A> fun) {
+    final Object[] acc = { init };
+    forEachChunk((chunk, from, to) -> {
+      A res = (A) acc[0];
+      for(int i = from; i < to; i++) {
+        res = fun.apply(res, (E) chunk[i]);
+      }
+      acc[0] = res;
+    });
+    return (A) acc[0];
+  }
+
+  @Override
+  public List<E> asList() {
+    return new ListView<E>(this);
+  }
+
+  /**
+   * Read-only {@link List} view of a sequence.
+   *
+   * @author Leo Woerteler
+   * @param <E> element type
+   */
+  private static final class ListView<E> extends AbstractList<E> implements RandomAccess {
+    /** Underlying sequence. */
+    private final PersistentSequence<E> seq;
+
+    /**
+     * Constructor.
+     * @param seq underlying sequence
+     */
+    ListView(final PersistentSequence<E> seq) {
+      this.seq = seq;
+    }
+
+    @Override
+    public E get(final int index) {
+      if(index < 0 || index >= seq.size()) throw new IndexOutOfBoundsException(
+          "Index: " + index + ", Size: " + seq.size());
+      return seq.get(index);
+    }
+
+    @Override
+    public int size() {
+      return seq.size();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+      return seq.iterator();
+    }
+
+    @Override
+    public Spliterator<E> spliterator() {
+      return seq.spliterator();
+    }
+
+    @Override
+    public void forEach(final Consumer<? super E> action) {
+      seq.forEach(action);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int indexOf(final Object o) {
+      return seq.indexOf((E) o);
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+      return indexOf(o) != -1;
+    }
+
+    @Override
+    public Object[] toArray() {
+      return seq.toArray();
+    }
+  }
+
+  /** Marker for a missing result in {@link #reduce(BinaryOperator)}. */
+  private static final Object NONE = new Object();
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public E reduce(final BinaryOperator<E> op) {
+    final Object res = fold(NONE, (acc, e) -> acc == NONE ? e : op.apply((E) acc, e));
+    if(res == NONE) throw new NoSuchElementException();
+    return (E) res;
+  }
+
+  /**
+   * Collects single elements into chunks for a {@link ChunkVisitor}. The buffer
+   * is reused for all chunks.
+   *
+   * @author Leo Woerteler
+   */
+  protected static final class ChunkBuffer {
+    /** Visitor receiving the chunks. */
+    private final ChunkVisitor visitor;
+    /** Buffer. */
+    private final Object[] buffer = new Object[TrieSequence.SIZE];
+    /** Number of buffered elements. */
+    private int size;
+
+    /**
+     * Constructor.
+     * @param visitor visitor receiving the chunks
+     */
+    public ChunkBuffer(final ChunkVisitor visitor) {
+      this.visitor = visitor;
+    }
+
+    /**
+     * Adds an element, passing the buffer on if it's full.
+     * @param elem element
+     */
+    public void add(final Object elem) {
+      buffer[size++] = elem;
+      if(size == buffer.length) {
+        flush();
+      }
+    }
+
+    /** Passes all buffered elements on to the visitor. */
+    public void flush() {
+      if(size > 0) {
+        visitor.visit(buffer, 0, size);
+        size = 0;
+      }
+    }
+  }
+
   @Override
   public int indexOf(final E elem) {
     int pos = 0;
@@ -0,0 +1,240 @@
+package de.woerteler.persistent;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.UnaryOperator;
+
+/**
+ * A reference to an immutable value that is updated asynchronously by a single
+ * writer. Any thread can send update functions, they are put into a lock-free queue.
+ * Only one task at a time drains the queue, applies the updates of a batch one after
+ * another and publishes the result once per batch, so updates never have to be
+ * retried. Readers see the latest published value.
+ *
+ * @author Leo Woerteler
+ * @param <T> type of the value
+ */
+public class Agent<T> {
+  /** Maximum number of messages applied in one batch. */
+  public static final int BATCH = 1 << 10;
+
+  /** Pending messages. */
+  private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<Object>();
+  /** Flag for a scheduled or running drain task. */
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  /** Buffer for the messages of a batch, only used by the drain task. */
+  private final Object[] buffer = new Object[BATCH];
+  /** Executor running the drain tasks. */
+  private final Executor executor;
+  /** Latest published value. */
+  private volatile T state;
+  /** Number of published values, only written by the drain task. */
+  private volatile long versions;
+  /** Number of failed updates, only written by the drain task. */
+  private volatile long failures;
+  /** Last exception thrown by an update, {@code null} if none. */
+  private volatile RuntimeException error;
+
+  /**
+   * Constructor using the {@link ForkJoinPool#commonPool() common pool}.
+   * @param init initial value
+   */
+  public Agent(final T init) {
+    this(init, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Constructor.
+   * @param init initial value
+   * @param executor executor running the writer
+   */
+  public Agent(final T init, final Executor executor) {
+    state = init;
+    this.executor = executor;
+  }
+
+  /**
+   * Returns the latest published value.
+   * @return current value
+   */
+  public T get() {
+    return state;
+  }
+
+  /**
+   * Sends an update function to this agent. It is applied asynchronously, after all
+   * messages sent before by the same thread. If it throws an exception, the update is
+   * skipped and the exception is recorded.
+   * @param fun update function
+   */
+  public void send(final UnaryOperator<T> fun) {
+    enqueue(fun);
+  }
+
+  /**
+   * Returns a future that is completed with the value after all messages sent
+   * before by the calling thread are applied.
+   * @return future value
+   */
+  public CompletableFuture<T> sync() {
+    final Sync<T> sync = new Sync<T>();
+    enqueue(sync);
+    return sync.future;
+  }
+
+  /**
+   * Adds a message to the queue and schedules the writer.
+   * @param msg message
+   */
+  protected final void enqueue(final Object msg) {
+    queue.offer(msg);
+    schedule();
+  }
+
+  /** Schedules the writer if it is neither scheduled nor running. */
+  private void schedule() {
+    if(scheduled.compareAndSet(false, true)) executor.execute(this::drain);
+  }
+
+  /**
+   * Applies the next batch of messages and publishes the result. If an overridden
+   * {@link #apply(Object, Object[], int, int)} throws an exception, the rest of the
+   * batch is skipped, the exception is recorded and the futures of its sync messages
+   * are completed exceptionally.
+   */
+  @SuppressWarnings("unchecked")
+  private void drain() {
+    int n = 0;
+    RuntimeException err = null;
+    try {
+      for(Object msg; n < BATCH && (msg = queue.poll()) != null;) {
+        buffer[n++] = msg;
+      }
+      T s = state;
+      int from = 0;
+      for(int i = 0; i < n; i++) {
+        if(buffer[i] instanceof Sync) {
+          s = publish(apply(s, buffer, from, i));
+          ((Sync<T>) buffer[i]).future.complete(s);
+          from = i + 1;
+        }
+      }
+      publish(apply(s, buffer, from, n));
+    } catch(final RuntimeException ex) {
+      failed(state, ex);
+      err = ex;
+    } finally {
+      // sync messages of an aborted batch must not be left waiting
+      for(int i = 0; i < n; i++) {
+        if(buffer[i] instanceof Sync) {
+          ((Sync<T>) buffer[i]).future.completeExceptionally(
+              err != null ? err : new IllegalStateException("Batch aborted"));
+        }
+      }
+      Arrays.fill(buffer, 0, n, null);
+      scheduled.set(false);
+      if(!queue.isEmpty()) schedule();
+    }
+  }
+
+  /**
+   * Publishes a new value if it changed.
+   * @param s new value
+   * @return the value
+   */
+  private T publish(final T s) {
+    if(s != state) {
+      state = s;
+      versions++;
+    }
+    return s;
+  }
+
+  /**
+   * Applies the messages in the given range of a batch. Subclasses can override this
+   * to combine several messages into one update.
+   * @param s current value
+   * @param batch messages
+   * @param from first message (inclusive)
+   * @param to last message (exclusive)
+   * @return new value
+   */
+  protected T apply(final T s, final Object[] batch, final int from, final int to) {
+    T res = s;
+    for(int i = from; i < to; i++) {
+      res = apply(res, batch[i]);
+    }
+    return res;
+  }
+
+  /**
+   * Applies a single update function, recording exceptions.
+   * @param s current value
+   * @param msg the update function
+   * @return new value, {@code s} if the function failed
+   */
+  @SuppressWarnings("unchecked")
+  protected final T apply(final T s, final Object msg) {
+    try {
+      return ((UnaryOperator<T>) msg).apply(s);
+    } catch(final RuntimeException ex) {
+      return failed(s, ex);
+    }
+  }
+
+  /**
+   * Records a failed update.
+   * @param s current value
+   * @param ex exception
+   * @return {@code s}
+   */
+  protected final T failed(final T s, final RuntimeException ex) {
+    error = ex;
+    failures++;
+    return s;
+  }
+
+  /**
+   * Returns the number of values published so far.
+   * @return number of versions
+   */
+  public long versions() {
+    return versions;
+  }
+
+  /**
+   * Returns the number of updates that threw an exception.
+   * @return number of failures
+   */
+  public long failures() {
+    return failures;
+  }
+
+  /**
+   * Returns the last exception thrown by an update.
+   * @return exception, {@code null} if no update failed
+   */
+  public RuntimeException getError() {
+    return error;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + '[' + state + ']';
+  }
+
+  /**
+   * Marker message completing a future.
+   *
+   * @author Leo Woerteler
+   * @param <T> type of the value
+   */
+  private static final class Sync<T> {
+    /** Future to complete. */
+    final CompletableFuture<T> future = new CompletableFuture<T>();
+  }
+}
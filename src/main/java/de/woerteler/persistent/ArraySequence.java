@@ -2,11 +2,14 @@ package de.woerteler.persistent;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
 
 /**
- * A persistent sequence that is fast upon first creation. The addition of
- * elements is slow for the first element but may be faster for later elements
- * due to caching.
+ * A persistent sequence that is fast upon first creation. The array is shared as an
+ * immutable prefix by all sequences derived from it, added elements are stored in a
+ * trie sequence behind it. So adding elements never copies the array.
  * 
  * @author Joschi <josua.krause@googlemail.com>
  * @param <E> The type of this sequence.
@@ -41,6 +44,8 @@ public final class ArraySequence<E> extends FlatSequence<E> {
 
   /** The internal array. */
   protected final E[] array;
+  /** The elements added behind the array. */
+  private final TrieSequence<E> tail;
 
   /**
    * Creates a sequence out of an array.
@@ -48,55 +53,120 @@ public final class ArraySequence<E> extends FlatSequence<E> {
    * @param array The array that is not copied.
    */
   private ArraySequence(final E[] array) {
+    this(array, TrieSequence.<E>empty());
+  }
+
+  /**
+   * Creates a sequence out of an array and the elements behind it.
+   * 
+   * @param array The array that is not copied.
+   * @param tail The elements behind the array.
+   */
+  private ArraySequence(final E[] array, final TrieSequence<E> tail) {
     this.array = array;
+    this.tail = tail;
   }
 
   @Override
   protected TrieSequence<E> asTrieSequence() {
-    return TrieSequence.from(array);
+    final TrieSequence<E> trie = TrieSequence.from(array);
+    return tail.size() == 0 ? trie : trie(trie.append(tail));
+  }
+
+  @Override
+  public PersistentSequence<E> add(final E item) {
+    return new ArraySequence<E>(array, tail.add(item));
   }
 
   @Override
   @SuppressWarnings("unchecked")
   public PersistentSequence<E> append(final PersistentSequence<? extends E> seq) {
-    if(!(seq instanceof ArraySequence)) return super.append(seq);
+    if(seq.size() == 0) return this;
+    if(tail.size() == 0 && seq instanceof ArraySequence
+        && ((ArraySequence<E>) seq).tail.size() == 0) {
+      final ArraySequence<E> other = (ArraySequence<E>) seq;
+      final int newLength = array.length + other.array.length;
+      final E[] newArray = Arrays.copyOf(array, newLength);
+      System.arraycopy(other.array, 0, newArray, array.length, other.array.length);
+      return new ArraySequence<E>(newArray);
+    }
+    return new ArraySequence<E>(array, trie(tail.append(seq)));
+  }
 
-    final ArraySequence<E> other = (ArraySequence<E>) seq;
-    final int newLength = array.length + other.array.length;
-    final E[] newArray = Arrays.copyOf(array, newLength);
-    System.arraycopy(other.array, 0, newArray, array.length, other.array.length);
-    return new ArraySequence<E>(newArray);
+  /**
+   * Returns the given sequence as a trie sequence, converting it if necessary.
+   * 
+   * @param <E> The type of the sequence.
+   * @param seq The sequence.
+   * @return The trie sequence.
+   */
+  private static <E> TrieSequence<E> trie(final PersistentSequence<E> seq) {
+    return seq instanceof TrieSequence ? (TrieSequence<E>) seq : TrieSequence.from(seq);
   }
 
   @Override
   public E get(final int pos) {
-    return array[pos];
+    return pos < array.length ? array[pos] : tail.get(pos - array.length);
+  }
+
+  @Override
+  public Spliterator<E> spliterator() {
+    if(tail.size() != 0) return super.spliterator();
+    return Spliterators.spliterator(array, Spliterator.ORDERED | Spliterator.IMMUTABLE);
+  }
+
+  @Override
+  public void forEach(final Consumer<? super E> action) {
+    for(final E e : array) {
+      action.accept(e);
+    }
+    tail.forEach(action);
+  }
+
+  @Override
+  public void forEachChunk(final ChunkVisitor visitor) {
+    visitor.visit(array, 0, array.length);
+    tail.forEachChunk(visitor);
   }
 
   @Override
   public int size() {
-    return array.length;
+    return array.length + tail.size();
   }
 
   @Override
   public Object[] toArray() {
-    return array.clone();
+    return copyTo(new Object[size()]);
   }
 
   @Override
   public E[] toArray(final E[] arr) {
-    E[] a;
-    if(arr.length != array.length) {
-      a = Arrays.copyOf(arr, array.length);
-    } else {
-      a = arr;
-    }
+    return copyTo(arr);
+  }
+
+  /**
+   * Copies the elements into the given array or a new one with the same
+   * component type.
+   * 
+   * @param <A> The array type.
+   * @param arr The array.
+   * @return The array containing the elements.
+   */
+  private <A> A[] copyTo(final A[] arr) {
+    final int size = size();
+    final A[] a = arr.length != size ? Arrays.copyOf(arr, size) : arr;
     System.arraycopy(array, 0, a, 0, array.length);
+    final int[] pos = { array.length };
+    tail.forEachChunk((chunk, from, to) -> {
+      System.arraycopy(chunk, from, a, pos[0], to - from);
+      pos[0] += to - from;
+    });
     return a;
   }
 
   @Override
   public String toString() {
+    if(tail.size() != 0) return super.toString();
     final StringBuilder sb = new StringBuilder(getClass().getSimpleName());
     return sb.append(Arrays.toString(array)).toString();
   }
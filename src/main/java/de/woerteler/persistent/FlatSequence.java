@@ -1,7 +1,15 @@
 package de.woerteler.persistent;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 /**
  * Provides implementations for almost all sequence methods. An implementing
@@ -13,25 +21,304 @@ import java.util.Arrays;
  */
 public abstract class FlatSequence<T> extends AbstractSequence<T> {
 
-  /** A soft reference to the converted sequence. */
-  // maybe use SoftReference here to ensure longer live-span
-  private volatile WeakReference<TrieSequence<T>> converted;
+  /** The cached converted sequence. */
+  private volatile Supplier<TrieSequence<T>> converted;
 
   /**
    * Converts this sequence into a fast modifiable trie sequence. The resulting
-   * sequence may be cached via a soft reference.
+   * sequence is cached according to the current {@link CachePolicy}.
    * 
    * @return The converted sequence.
    */
   protected TrieSequence<T> convert() {
-    TrieSequence<T> res = null;
-    if(converted == null || (res = converted.get()) == null) {
-      res = asTrieSequence();
-      converted = new WeakReference<TrieSequence<T>>(res);
+    final Supplier<TrieSequence<T>> cached = converted;
+    TrieSequence<T> res = cached == null ? null : cached.get();
+    if(res != null) {
+      HITS.increment();
+      return res;
     }
+    MISSES.increment();
+    res = asTrieSequence();
+    converted = policy.hold(res);
     return res;
   }
 
+  /** Name of the system property for the initial cache policy. */
+  public static final String POLICY_PROPERTY = "de.woerteler.persistent.cache";
+  /** Name of the system property for the byte budget of {@link CachePolicy#LRU}. */
+  public static final String BUDGET_PROPERTY = "de.woerteler.persistent.cache.bytes";
+
+  /** The current cache policy. */
+  private static volatile CachePolicy policy = initialPolicy();
+  /** Number of conversions that were answered from the cache. */
+  private static final LongAdder HITS = new LongAdder();
+  /** Number of conversions that had to be computed. */
+  private static final LongAdder MISSES = new LongAdder();
+
+  /**
+   * Reads the initial cache policy from the system property {@value #POLICY_PROPERTY}.
+   * Unknown names fall back to the default, like malformed numbers for
+   * {@value #BUDGET_PROPERTY}.
+   * 
+   * @return The initial policy.
+   */
+  private static CachePolicy initialPolicy() {
+    final String name = System.getProperty(POLICY_PROPERTY);
+    if(name != null) {
+      try {
+        return CachePolicy.valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+      } catch(final IllegalArgumentException ex) {
+        // unknown policy, use the default
+      }
+    }
+    return CachePolicy.SOFT;
+  }
+
+  /**
+   * Sets the policy for caching converted sequences. It applies to all conversions
+   * from now on, already cached sequences keep their policy. The initial policy is
+   * read from the system property {@value #POLICY_PROPERTY}, the default is
+   * {@link CachePolicy#SOFT}.
+   * 
+   * @param pol The new policy.
+   */
+  public static void setCachePolicy(final CachePolicy pol) {
+    if(pol == null) throw new NullPointerException("policy");
+    policy = pol;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The current cache policy.
+   */
+  public static CachePolicy getCachePolicy() {
+    return policy;
+  }
+
+  /**
+   * Sets the maximum estimated number of bytes of all sequences cached with
+   * {@link CachePolicy#LRU}. The initial budget is read from the system property
+   * {@value #BUDGET_PROPERTY}, the default is 64 MB.
+   * 
+   * @param bytes The budget in bytes.
+   */
+  public static void setCacheBudget(final long bytes) {
+    if(bytes < 0) throw new IllegalArgumentException("budget: " + bytes);
+    Lru.setBudget(bytes);
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The number of conversions answered from the cache.
+   */
+  public static long cacheHits() {
+    return HITS.sum();
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The number of conversions that had to be computed.
+   */
+  public static long cacheMisses() {
+    return MISSES.sum();
+  }
+
+  /** Resets the cache counters. */
+  public static void resetCacheStats() {
+    HITS.reset();
+    MISSES.reset();
+  }
+
+  /**
+   * Policies for caching the converted sequence of a flat sequence.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  public enum CachePolicy {
+
+    /** The converted sequence is only reachable weakly and lost in the next GC. */
+    WEAK {
+
+      @Override
+      <T> Supplier<TrieSequence<T>> hold(final TrieSequence<T> seq) {
+        return new WeakReference<TrieSequence<T>>(seq)::get;
+      }
+
+    },
+
+    /** The converted sequence is kept until memory runs low. */
+    SOFT {
+
+      @Override
+      <T> Supplier<TrieSequence<T>> hold(final TrieSequence<T> seq) {
+        return new SoftReference<TrieSequence<T>>(seq)::get;
+      }
+
+    },
+
+    /** The converted sequence is kept as long as the flat sequence. */
+    STRONG {
+
+      @Override
+      <T> Supplier<TrieSequence<T>> hold(final TrieSequence<T> seq) {
+        return () -> seq;
+      }
+
+    },
+
+    /**
+     * The converted sequences of all flat sequences share a global cache with a
+     * maximum estimated size, the least recently used ones are evicted first.
+     */
+    LRU {
+
+      @Override
+      <T> Supplier<TrieSequence<T>> hold(final TrieSequence<T> seq) {
+        return Lru.put(seq);
+      }
+
+    };
+
+    /**
+     * Creates a cache entry for the given sequence.
+     * 
+     * @param <T> The content type.
+     * @param seq The converted sequence.
+     * @return The function returning the sequence or {@code null} if it was evicted.
+     */
+    abstract <T> Supplier<TrieSequence<T>> hold(final TrieSequence<T> seq);
+
+  }
+
+  /**
+   * The global cache for {@link CachePolicy#LRU}. The entries are keyed by their
+   * suppliers, so they are evicted eventually after the flat sequence is collected.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  private static final class Lru {
+
+    /** The cached sequences in access order, keyed by the slots of their handles. */
+    private static final LinkedHashMap<Slot, TrieSequence<?>> CACHE =
+        new LinkedHashMap<Slot, TrieSequence<?>>(16, 0.75f, true);
+    /** The slots whose handles, and thus flat sequences, were garbage collected. */
+    private static final ReferenceQueue<Object> DEAD = new ReferenceQueue<Object>();
+    /** The maximum estimated size of the cached sequences. */
+    private static long budget = Long.getLong(BUDGET_PROPERTY, 64L << 20);
+    /** The estimated size of the cached sequences. */
+    private static long bytes;
+
+    /** No constructor. */
+    private Lru() {
+      // no constructor
+    }
+
+    /**
+     * Estimates the size of a converted sequence: the element references in the
+     * leaves, the nodes of the trie and a minimal object for every element, since
+     * computed elements are only reachable through the converted sequence.
+     * 
+     * @param seq The sequence.
+     * @return The estimated size in bytes.
+     */
+    private static long estimate(final TrieSequence<?> seq) {
+      final long n = seq.size();
+      final long nodes = n / TrieSequence.SIZE + 1;
+      return 64 + 24 * n + 56 * (nodes + nodes / TrieSequence.SIZE);
+    }
+
+    /**
+     * Caches the given sequence.
+     * 
+     * @param <T> The content type.
+     * @param seq The sequence.
+     * @return The function returning the sequence or {@code null} if it was evicted.
+     */
+    static synchronized <T> Supplier<TrieSequence<T>> put(final TrieSequence<T> seq) {
+      expunge();
+      final Handle<T> handle = new Handle<T>();
+      final long est = estimate(seq);
+      if(est <= budget) {
+        CACHE.put(handle.slot, seq);
+        bytes += est;
+        evict();
+      }
+      return handle;
+    }
+
+    /**
+     * Sets the budget and evicts sequences if necessary.
+     * 
+     * @param max The new budget.
+     */
+    static synchronized void setBudget(final long max) {
+      budget = max;
+      evict();
+    }
+
+    /** Removes the sequences of flat sequences that were garbage collected. */
+    private static void expunge() {
+      for(Reference<?> ref; (ref = DEAD.poll()) != null;) {
+        final TrieSequence<?> seq = CACHE.remove(ref);
+        if(seq != null) bytes -= estimate(seq);
+      }
+    }
+
+    /** Evicts the least recently used sequences until the budget is kept. */
+    private static void evict() {
+      expunge();
+      final Iterator<TrieSequence<?>> iter = CACHE.values().iterator();
+      while(bytes > budget && iter.hasNext()) {
+        bytes -= estimate(iter.next());
+        iter.remove();
+      }
+    }
+
+    /**
+     * The cache key of a handle. It only references the handle weakly, so the cached
+     * sequence is dropped once the flat sequence holding the handle is gone.
+     * 
+     * @author Joschi <josua.krause@googlemail.com>
+     */
+    private static final class Slot extends WeakReference<Object> {
+
+      /**
+       * Creates a slot.
+       * 
+       * @param handle The handle.
+       */
+      Slot(final Object handle) {
+        super(handle, DEAD);
+      }
+
+    }
+
+    /**
+     * Returns a cached sequence as long as it was not evicted.
+     * 
+     * @author Joschi <josua.krause@googlemail.com>
+     * @param <T> The content type.
+     */
+    private static final class Handle<T> implements Supplier<TrieSequence<T>> {
+
+      /** The cache key. */
+      final Slot slot = new Slot(this);
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public TrieSequence<T> get() {
+        synchronized(Lru.class) {
+          return (TrieSequence<T>) CACHE.get(slot);
+        }
+      }
+
+    }
+
+  }
+
   /**
    * Converts this sequence into a trie sequence. This method is called before
    * attempting to change the content of this sequence. The result may be cached
@@ -0,0 +1,297 @@
+package de.woerteler.persistent;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+import de.woerteler.persistent.map.ImmutableMap;
+
+/**
+ * A set of persistent roots that are updated together by transactions with
+ * multi-version concurrency control. All committed roots are kept in one immutable
+ * version, so a transaction reads a consistent set of roots just by keeping the
+ * version it started with, and read-only transactions never block or fail. A
+ * transaction that writes is validated at commit: it fails if any root it read was
+ * changed by another transaction in the meantime. Otherwise all of its writes are
+ * published atomically with a single compare-and-set.
+ *
+ * @author Leo Woerteler
+ */
+public final class MvccStore {
+  /** The latest committed version. */
+  private final AtomicReference<Version> current =
+      new AtomicReference<Version>(new Version(0, ImmutableMap.<Integer, Object>empty()));
+  /** Number of the next root. */
+  private int nextId;
+  /** Number of committed transactions that wrote roots. */
+  private final LongAdder commits = new LongAdder();
+  /** Number of transactions that failed validation. */
+  private final LongAdder conflicts = new LongAdder();
+
+  /**
+   * Creates a new root in this store.
+   * @param <T> type of the root
+   * @param init initial value
+   * @return reference to the root
+   */
+  public <T> Ref<T> newRef(final T init) {
+    final Ref<T> ref;
+    synchronized(this) {
+      ref = new Ref<T>(this, nextId++);
+    }
+    for(;;) {
+      final Version v = current.get();
+      if(current.compareAndSet(v, new Version(v.number, v.roots.put(ref.id, init))))
+        return ref;
+    }
+  }
+
+  /**
+   * Returns the latest committed value of a root, without a transaction.
+   * @param <T> type of the root
+   * @param ref reference to the root
+   * @return committed value
+   */
+  public <T> T get(final Ref<T> ref) {
+    return current.get().get(check(ref));
+  }
+
+  /**
+   * Starts a transaction on the latest committed version.
+   * @return transaction
+   */
+  public Transaction begin() {
+    return new Transaction(current.get());
+  }
+
+  /**
+   * Runs the given function in a transaction and commits it, retrying with a new
+   * transaction until the commit succeeds. The function may be called more than once,
+   * so it should only have effects through the transaction.
+   * @param <R> result type
+   * @param body function to run
+   * @return result of the successful run
+   */
+  public <R> R atomically(final Function<Transaction, R> body) {
+    for(;;) {
+      final Transaction tx = begin();
+      final R res = body.apply(tx);
+      if(tx.commit()) return res;
+    }
+  }
+
+  /**
+   * Returns the number of the latest committed version, which is incremented by every
+   * committed transaction that wrote roots.
+   * @return version number
+   */
+  public long version() {
+    return current.get().number;
+  }
+
+  /**
+   * Returns the number of committed transactions that wrote roots.
+   * @return number of commits
+   */
+  public long commits() {
+    return commits.sum();
+  }
+
+  /**
+   * Returns the number of transactions that failed validation.
+   * @return number of conflicts
+   */
+  public long conflicts() {
+    return conflicts.sum();
+  }
+
+  /**
+   * Checks that the given reference belongs to this store.
+   * @param ref reference
+   * @return the reference
+   */
+  private Ref<?> check(final Ref<?> ref) {
+    if(ref.store != this) throw new IllegalArgumentException("Reference of another store");
+    return ref;
+  }
+
+  /**
+   * An immutable committed version of all roots.
+   *
+   * @author Leo Woerteler
+   */
+  private static final class Version {
+    /** Version number. */
+    final long number;
+    /** Values of the roots by their number. */
+    final ImmutableMap<Integer, Object> roots;
+
+    /**
+     * Constructor.
+     * @param number version number
+     * @param roots values of the roots
+     */
+    Version(final long number, final ImmutableMap<Integer, Object> roots) {
+      this.number = number;
+      this.roots = roots;
+    }
+
+    /**
+     * Returns the value of a root.
+     * @param <T> type of the root
+     * @param ref reference to the root
+     * @return value
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(final Ref<?> ref) {
+      return (T) roots.get(ref.id);
+    }
+  }
+
+  /**
+   * Reference to a root of a store.
+   *
+   * @author Leo Woerteler
+   * @param <T> type of the root
+   */
+  public static final class Ref<T> {
+    /** Store of the root. */
+    final MvccStore store;
+    /** Number of the root. */
+    final int id;
+
+    /**
+     * Constructor.
+     * @param store store of the root
+     * @param id number of the root
+     */
+    Ref(final MvccStore store, final int id) {
+      this.store = store;
+      this.id = id;
+    }
+
+    @Override
+    public String toString() {
+      return getClass().getSimpleName() + '[' + id + ']';
+    }
+  }
+
+  /**
+   * A transaction reading from one committed version. Transactions are meant to be
+   * used by a single thread.
+   *
+   * @author Leo Woerteler
+   */
+  public final class Transaction {
+    /** Version the transaction reads from. */
+    private final Version snapshot;
+    /** Values of the roots that were read from the snapshot. */
+    private final Map<Ref<?>, Object> reads = new IdentityHashMap<Ref<?>, Object>();
+    /** Values written by this transaction. */
+    private final Map<Integer, Object> writes = new HashMap<Integer, Object>();
+    /** Flag for a finished transaction. */
+    private boolean done;
+
+    /**
+     * Constructor.
+     * @param snapshot version to read from
+     */
+    Transaction(final Version snapshot) {
+      this.snapshot = snapshot;
+    }
+
+    /**
+     * Returns the value of a root as seen by this transaction.
+     * @param <T> type of the root
+     * @param ref reference to the root
+     * @return value written by this transaction or read from its version
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(final Ref<T> ref) {
+      open(ref);
+      if(writes.containsKey(ref.id)) return (T) writes.get(ref.id);
+      final T val = snapshot.get(ref);
+      reads.put(ref, val);
+      return val;
+    }
+
+    /**
+     * Sets the value of a root in this transaction.
+     * @param <T> type of the root
+     * @param ref reference to the root
+     * @param val new value
+     */
+    public <T> void set(final Ref<T> ref, final T val) {
+      open(ref);
+      writes.put(ref.id, val);
+    }
+
+    /**
+     * Updates the value of a root in this transaction.
+     * @param <T> type of the root
+     * @param ref reference to the root
+     * @param fun update function
+     * @return the new value
+     */
+    public <T> T update(final Ref<T> ref, final UnaryOperator<T> fun) {
+      final T val = fun.apply(get(ref));
+      set(ref, val);
+      return val;
+    }
+
+    /**
+     * Returns the number of the version this transaction reads from.
+     * @return version number
+     */
+    public long version() {
+      return snapshot.number;
+    }
+
+    /**
+     * Commits this transaction. Read-only transactions always succeed. Otherwise the
+     * commit fails if a root read by this transaction was changed by another one
+     * since the version this transaction reads from.
+     * @return {@code true} if the writes were published, {@code false} on a conflict
+     */
+    public boolean commit() {
+      if(done) throw new IllegalStateException("Transaction is finished");
+      done = true;
+      if(writes.isEmpty()) return true;
+      for(;;) {
+        final Version cur = current.get();
+        if(cur != snapshot) {
+          for(final Entry<Ref<?>, Object> e : reads.entrySet()) {
+            if(cur.get(e.getKey()) != e.getValue()) {
+              conflicts.increment();
+              return false;
+            }
+          }
+        }
+        final Version upd = new Version(cur.number + 1, cur.roots.putAll(writes));
+        if(current.compareAndSet(cur, upd)) {
+          commits.increment();
+          return true;
+        }
+      }
+    }
+
+    /** Discards the writes of this transaction. */
+    public void abort() {
+      done = true;
+    }
+
+    /**
+     * Checks that the transaction can be used with the given root.
+     * @param ref reference to the root
+     */
+    private void open(final Ref<?> ref) {
+      if(done) throw new IllegalStateException("Transaction is finished");
+      check(ref);
+    }
+  }
+}
@@ -1,6 +1,14 @@
 package de.woerteler.persistent;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import de.woerteler.persistent.AbstractSequence.ChunkBuffer;
 
 /**
  * Handles the creation of immutable sequences.
@@ -59,4 +67,293 @@ public final class Persistent {
     return ArraySequence.from(c);
   }
 
+  /**
+   * Creates a lazy view of the given sequence where the function is applied to
+   * every element. Nothing is computed in advance, the function is applied on every
+   * access, so it should be cheap and free of side effects. The view is only
+   * materialized when it is modified.
+   * 
+   * @param <E> The type of the input sequence.
+   * @param <R> The type of the resulting sequence.
+   * @param seq The input sequence.
+   * @param fn The function.
+   * @return The mapped sequence.
+   */
+  public static <E, R> PersistentSequence<R> lazyMap(
+      final PersistentSequence<E> seq, final Function<? super E, ? extends R> fn) {
+    final int size = seq.size();
+    if(size == 0) return empty();
+    return new FlatSequence<R>() {
+
+      @Override
+      public R get(final int pos) {
+        return fn.apply(seq.get(pos));
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+
+      @Override
+      public Iterator<R> iterator() {
+        final Iterator<E> iter = seq.iterator();
+        return new Iterator<R>() {
+
+          @Override
+          public boolean hasNext() {
+            return iter.hasNext();
+          }
+
+          @Override
+          public R next() {
+            return fn.apply(iter.next());
+          }
+
+        };
+      }
+
+      @Override
+      public void forEach(final Consumer<? super R> action) {
+        seq.forEach(e -> action.accept(fn.apply(e)));
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public void forEachChunk(final ChunkVisitor visitor) {
+        final ChunkBuffer buffer = new ChunkBuffer(visitor);
+        seq.forEachChunk((chunk, from, to) -> {
+          for(int i = from; i < to; i++) {
+            buffer.add(fn.apply((E) chunk[i]));
+          }
+        });
+        buffer.flush();
+      }
+
+      @Override
+      protected TrieSequence<R> asTrieSequence() {
+        return seq instanceof TrieSequence ? ((TrieSequence<E>) seq).map(fn)
+            : super.asTrieSequence();
+      }
+
+    };
+  }
+
+  /**
+   * Creates a lazy view of the concatenation of the given sequences. Nothing is
+   * copied until the view is modified.
+   * 
+   * @param <E> The type of the sequence.
+   * @param a The first sequence.
+   * @param b The second sequence.
+   * @return The concatenated sequence.
+   */
+  public static <E> PersistentSequence<E> lazyConcat(
+      final PersistentSequence<E> a, final PersistentSequence<E> b) {
+    final int split = a.size(), size = split + b.size();
+    if(size == split) return a;
+    if(split == 0) return b;
+    return new FlatSequence<E>() {
+
+      @Override
+      public E get(final int pos) {
+        return pos < split ? a.get(pos) : b.get(pos - split);
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+
+      @Override
+      public Iterator<E> iterator() {
+        return new Iterator<E>() {
+
+          /** The current iterator. */
+          private Iterator<E> iter = a.iterator();
+          /** Flag for the second sequence. */
+          private boolean second;
+
+          @Override
+          public boolean hasNext() {
+            if(!second && !iter.hasNext()) {
+              iter = b.iterator();
+              second = true;
+            }
+            return iter.hasNext();
+          }
+
+          @Override
+          public E next() {
+            if(!hasNext()) throw new NoSuchElementException();
+            return iter.next();
+          }
+
+        };
+      }
+
+      @Override
+      public void forEach(final Consumer<? super E> action) {
+        a.forEach(action);
+        b.forEach(action);
+      }
+
+      @Override
+      public void forEachChunk(final ChunkVisitor visitor) {
+        a.forEachChunk(visitor);
+        b.forEachChunk(visitor);
+      }
+
+    };
+  }
+
+  /**
+   * Creates a lazy view of the elements of the given sequence that satisfy the
+   * predicate. Iterating the view tests the elements on the fly, the positions of
+   * the matching elements are only computed if the size or an element at a position
+   * is requested. The predicate should be free of side effects. The view is only
+   * materialized when it is modified.
+   * 
+   * @param <E> The type of the sequence.
+   * @param seq The input sequence.
+   * @param pred The predicate.
+   * @return The filtered sequence.
+   */
+  public static <E> PersistentSequence<E> lazyFilter(
+      final PersistentSequence<E> seq, final Predicate<? super E> pred) {
+    if(seq.size() == 0) return seq;
+    return new FilteredSequence<E>(seq, pred);
+  }
+
+  /**
+   * A lazily filtered sequence.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   * @param <E> The type of the sequence.
+   */
+  private static final class FilteredSequence<E> extends FlatSequence<E> {
+
+    /** The input sequence. */
+    private final PersistentSequence<E> seq;
+    /** The predicate. */
+    private final Predicate<? super E> pred;
+    /** The positions of the matching elements, computed on demand. */
+    private volatile int[] index;
+
+    /**
+     * Constructor.
+     * 
+     * @param seq The input sequence.
+     * @param pred The predicate.
+     */
+    FilteredSequence(final PersistentSequence<E> seq, final Predicate<? super E> pred) {
+      this.seq = seq;
+      this.pred = pred;
+    }
+
+    /**
+     * Getter.
+     * 
+     * @return The positions of the matching elements.
+     */
+    @SuppressWarnings("unchecked")
+    private int[] index() {
+      int[] idx = index;
+      if(idx == null) {
+        final int[][] res = { new int[8] };
+        final int[] n = { 0, 0 };
+        seq.forEachChunk((chunk, from, to) -> {
+          for(int i = from; i < to; i++, n[1]++) {
+            if(pred.test((E) chunk[i])) {
+              if(n[0] == res[0].length) {
+                res[0] = Arrays.copyOf(res[0], n[0] << 1);
+              }
+              res[0][n[0]++] = n[1];
+            }
+          }
+        });
+        idx = Arrays.copyOf(res[0], n[0]);
+        index = idx;
+      }
+      return idx;
+    }
+
+    @Override
+    public E get(final int pos) {
+      final int[] idx = index();
+      if(pos < 0 || pos >= idx.length)
+        throw new IndexOutOfBoundsException("pos: " + pos + " size: " + idx.length);
+      return seq.get(idx[pos]);
+    }
+
+    @Override
+    public int size() {
+      return index().length;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+      final Iterator<E> iter = seq.iterator();
+      return new Iterator<E>() {
+
+        /** The next matching element. */
+        private E next;
+        /** Flag for a found element. */
+        private boolean found;
+
+        @Override
+        public boolean hasNext() {
+          while(!found && iter.hasNext()) {
+            final E e = iter.next();
+            if(pred.test(e)) {
+              next = e;
+              found = true;
+            }
+          }
+          return found;
+        }
+
+        @Override
+        public E next() {
+          if(!hasNext()) throw new NoSuchElementException();
+          found = false;
+          final E e = next;
+          next = null;
+          return e;
+        }
+
+      };
+    }
+
+    @Override
+    public void forEach(final Consumer<? super E> action) {
+      seq.forEach(e -> {
+        if(pred.test(e)) {
+          action.accept(e);
+        }
+      });
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEachChunk(final ChunkVisitor visitor) {
+      final ChunkBuffer buffer = new ChunkBuffer(visitor);
+      seq.forEachChunk((chunk, from, to) -> {
+        for(int i = from; i < to; i++) {
+          if(pred.test((E) chunk[i])) {
+            buffer.add(chunk[i]);
+          }
+        }
+      });
+      buffer.flush();
+    }
+
+    @Override
+    protected TrieSequence<E> asTrieSequence() {
+      return seq instanceof TrieSequence ? ((TrieSequence<E>) seq).filter(pred)
+          : super.asTrieSequence();
+    }
+
+  }
+
 }
@@ -0,0 +1,98 @@
+package de.woerteler.persistent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.function.Function;
+import java.util.stream.Collector;
+
+import de.woerteler.persistent.map.ImmutableMap;
+
+/**
+ * {@link Collector}s that build persistent data structures directly. The
+ * accumulators are builders that are modified in place, and partial results of
+ * parallel streams are combined structurally.
+ *
+ * @author Leo Woerteler
+ */
+public final class PersistentCollectors {
+
+  /** No constructor. */
+  private PersistentCollectors() {
+    // no constructor
+  }
+
+  /**
+   * Collects the elements of a stream into a {@link TrieSequence}, keeping their
+   * encounter order.
+   *
+   * @param <T> The type of the elements.
+   * @return The collector.
+   */
+  public static <T> Collector<T, ?, TrieSequence<T>> toTrieSequence() {
+    return Collector.<T, TrieSequence.Builder<T>, TrieSequence<T>>of(
+        TrieSequence.Builder::new, TrieSequence.Builder::add,
+        TrieSequence.Builder::addAll, TrieSequence.Builder::build);
+  }
+
+  /**
+   * Collects the elements of a stream into an {@link ImmutableMap}. If two elements
+   * are mapped to the same key, the later one wins.
+   *
+   * @param <T> The type of the elements.
+   * @param <K> The key type.
+   * @param <V> The value type.
+   * @param keyFn function computing the key of an element
+   * @param valFn function computing the value of an element
+   * @return The collector.
+   */
+  public static <T, K, V> Collector<T, ?, ImmutableMap<K, V>> toImmutableMap(
+      final Function<? super T, ? extends K> keyFn,
+      final Function<? super T, ? extends V> valFn) {
+    return Collector.<T, ImmutableMap.Builder<K, V>, ImmutableMap<K, V>>of(
+        ImmutableMap.Builder::new, (b, t) -> b.put(keyFn.apply(t), valFn.apply(t)),
+        ImmutableMap.Builder::putAll, ImmutableMap.Builder::build);
+  }
+
+  /**
+   * Groups the elements of a stream by the given classifier into an
+   * {@link ImmutableMap} from keys to the {@link TrieSequence}s of the elements
+   * with that key, keeping their encounter order.
+   *
+   * @param <T> The type of the elements.
+   * @param <K> The key type.
+   * @param classifier function computing the key of an element
+   * @return The collector.
+   */
+  public static <T, K> Collector<T, ?, ImmutableMap<K, TrieSequence<T>>>
+      groupingByImmutable(final Function<? super T, ? extends K> classifier) {
+    return Collector.<T, Map<K, TrieSequence.Builder<T>>, ImmutableMap<K, TrieSequence<T>>>of(
+        HashMap::new, (m, t) -> {
+          final K key = classifier.apply(t);
+          TrieSequence.Builder<T> b = m.get(key);
+          if(b == null) {
+            b = new TrieSequence.Builder<T>();
+            m.put(key, b);
+          }
+          b.add(t);
+        }, (m1, m2) -> {
+          for(final Entry<K, TrieSequence.Builder<T>> e : m2.entrySet()) {
+            final TrieSequence.Builder<T> b = m1.get(e.getKey());
+            if(b == null) {
+              m1.put(e.getKey(), e.getValue());
+            } else {
+              b.addAll(e.getValue());
+            }
+          }
+          return m1;
+        }, m -> {
+          final ImmutableMap.Builder<K, TrieSequence<T>> res =
+              new ImmutableMap.Builder<K, TrieSequence<T>>();
+          for(final Entry<K, TrieSequence.Builder<T>> e : m.entrySet()) {
+            res.put(e.getKey(), e.getValue().build());
+          }
+          return res.build();
+        });
+  }
+
+}
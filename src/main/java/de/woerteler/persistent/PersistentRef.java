@@ -0,0 +1,223 @@
+package de.woerteler.persistent;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import de.woerteler.persistent.map.ImmutableMap;
+
+/**
+ * A mutable reference to an immutable value, for example an {@link ImmutableMap} or a
+ * {@link TrieSequence} that is shared between threads. Updates are applied with
+ * compare-and-set and retried if another thread changed the value in between, so
+ * update functions have to be free of side effects. Failed attempts back off, the
+ * more the more contention the reference has seen recently.
+ *
+ * @author Leo Woerteler
+ * @param <T> type of the value
+ */
+public final class PersistentRef<T> {
+  /** Maximum backoff level, the longest backoff parks for {@code 2^MAX_LEVEL} ns. */
+  private static final int MAX_LEVEL = 12;
+  /** Backoff level from which threads are parked instead of yielding. */
+  private static final int PARK_LEVEL = 8;
+
+  /** Current value. */
+  private final AtomicReference<T> value;
+  /** Validator for new values, {@code null} if all values are accepted. */
+  private final Predicate<? super T> validator;
+  /** Number of successful updates. */
+  private final LongAdder updates = new LongAdder();
+  /** Number of failed compare-and-set attempts that were retried. */
+  private final LongAdder retries = new LongAdder();
+  /** Number of values rejected by the validator. */
+  private final LongAdder rejected = new LongAdder();
+  /** Recent contention, used as initial backoff level of retries. */
+  private volatile int contention;
+
+  /**
+   * Constructor for a reference without validator.
+   * @param init initial value
+   */
+  public PersistentRef(final T init) {
+    this(init, null);
+  }
+
+  /**
+   * Constructor.
+   * @param init initial value
+   * @param validator predicate every new value has to satisfy, may be {@code null}
+   * @throws IllegalArgumentException if the initial value is rejected
+   */
+  public PersistentRef(final T init, final Predicate<? super T> validator) {
+    this.validator = validator;
+    validate(init);
+    value = new AtomicReference<T>(init);
+  }
+
+  /**
+   * Returns the current value.
+   * @return current value
+   */
+  public T get() {
+    return value.get();
+  }
+
+  /**
+   * Sets the value unconditionally.
+   * @param val new value
+   * @throws IllegalArgumentException if the value is rejected by the validator
+   */
+  public void set(final T val) {
+    validate(val);
+    value.set(val);
+    updates.increment();
+  }
+
+  /**
+   * Sets the value if the current value is identical to the expected one.
+   * @param expect expected current value
+   * @param update new value
+   * @return {@code true} if the value was set
+   * @throws IllegalArgumentException if the new value is rejected by the validator
+   */
+  public boolean compareAndSet(final T expect, final T update) {
+    validate(update);
+    if(!value.compareAndSet(expect, update)) return false;
+    updates.increment();
+    return true;
+  }
+
+  /**
+   * Applies the function to the current value and sets the result, retrying until no
+   * other thread interfered.
+   * @param fun update function, may be called more than once
+   * @return the new value
+   * @throws IllegalArgumentException if a new value is rejected by the validator
+   */
+  public T updateAndGet(final UnaryOperator<T> fun) {
+    return update(fun)[1];
+  }
+
+  /**
+   * Applies the function to the current value and sets the result, retrying until no
+   * other thread interfered.
+   * @param fun update function, may be called more than once
+   * @return the old value the function was applied to
+   * @throws IllegalArgumentException if a new value is rejected by the validator
+   */
+  public T swap(final UnaryOperator<T> fun) {
+    return update(fun)[0];
+  }
+
+  /**
+   * Updates the binding of a key in a referenced map. The new value is computed from
+   * the current one in a single traversal of the map by
+   * {@link ImmutableMap#update(Object, Function)}.
+   * @param <K> key type
+   * @param <V> value type
+   * @param ref reference to the map
+   * @param key key to update
+   * @param fun function taking the current value, or {@code null} if the key is absent,
+   *   may be called more than once
+   * @return the new map
+   */
+  public static <K, V> ImmutableMap<K, V> swapIn(final PersistentRef<ImmutableMap<K, V>> ref,
+      final K key, final Function<? super V, ? extends V> fun) {
+    return ref.updateAndGet(map -> map.update(key, fun));
+  }
+
+  /**
+   * Applies the update function until the compare-and-set succeeds.
+   * @param fun update function
+   * @return array containing the old and the new value
+   */
+  @SuppressWarnings("unchecked")
+  private T[] update(final UnaryOperator<T> fun) {
+    final int start = contention;
+    int level = start;
+    for(int tries = 0;; tries++) {
+      final T old = value.get(), upd = fun.apply(old);
+      if(upd != old) validate(upd);
+      if(value.compareAndSet(old, upd)) {
+        updates.increment();
+        // adapt to the observed contention
+        if(tries == 0 ? start > 0 : start < MAX_LEVEL) {
+          contention = tries == 0 ? start - 1 : Math.min(start + tries, MAX_LEVEL);
+        }
+        return (T[]) new Object[] { old, upd };
+      }
+      retries.increment();
+      backoff(level);
+      level = Math.min(level + 1, MAX_LEVEL);
+    }
+  }
+
+  /**
+   * Waits before the next attempt.
+   * @param level backoff level
+   */
+  private static void backoff(final int level) {
+    if(level >= PARK_LEVEL) {
+      LockSupport.parkNanos(1L << level);
+    } else if(level > 0) {
+      for(int i = level; i > 0; i--) {
+        Thread.yield();
+      }
+    }
+  }
+
+  /**
+   * Checks the given value with the validator.
+   * @param val value to check
+   * @throws IllegalArgumentException if the value is rejected
+   */
+  private void validate(final T val) {
+    if(validator != null && !validator.test(val)) {
+      rejected.increment();
+      throw new IllegalArgumentException("Value rejected by validator");
+    }
+  }
+
+  /**
+   * Returns the number of successful updates.
+   * @return number of updates
+   */
+  public long updates() {
+    return updates.sum();
+  }
+
+  /**
+   * Returns the number of compare-and-set attempts that failed because of concurrent
+   * updates and had to be retried.
+   * @return number of retries
+   */
+  public long retries() {
+    return retries.sum();
+  }
+
+  /**
+   * Returns the number of values rejected by the validator.
+   * @return number of rejected values
+   */
+  public long rejected() {
+    return rejected.sum();
+  }
+
+  /**
+   * Returns the current contention level between {@code 0} and {@value #MAX_LEVEL}.
+   * It grows with the number of retries and decays with every uncontended update.
+   * @return contention level
+   */
+  public int contention() {
+    return contention;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + '[' + value.get() + ']';
+  }
+}
@@ -1,7 +1,11 @@
 package de.woerteler.persistent;
 
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.RandomAccess;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.stream.Stream;
 
 /**
  * An interface for immutable sequences.
@@ -76,4 +80,63 @@ public interface PersistentSequence<E> extends Iterable<E>, RandomAccess {
    * @return array containing the elements of this sequence
    */
   E[] toArray(final E[] array);
+
+  /**
+   * Calls the given visitor for consecutive chunks of this sequence, in order. The
+   * chunks are read-only views of internal arrays and are only valid during the call,
+   * so they must neither be modified nor kept.
+   * @param visitor visitor for the chunks
+   */
+  void forEachChunk(final ChunkVisitor visitor);
+
+  /**
+   * Combines all elements into a single result, from first to last element.
+   * @param <A> result type
+   * @param init initial result
+   * @param fun function combining the result so far with the next element
+   * @return combined result, {@code init} for the empty sequence
+   */
+  <A> A fold(final A init, final BiFunction<A, ? super E, A> fun);
+
+  /**
+   * Combines all elements with the given operator, from first to last element.
+   * @param op operator combining the result so far with the next element
+   * @return combined result, the only element for singleton sequences
+   * @throws NoSuchElementException if the sequence is empty
+   */
+  E reduce(final BinaryOperator<E> op);
+
+  /**
+   * Returns a sequential stream over the elements of this sequence.
+   * @return sequential stream
+   */
+  Stream<E> stream();
+
+  /**
+   * Returns a possibly parallel stream over the elements of this sequence.
+   * @return parallel stream
+   */
+  Stream<E> parallelStream();
+
+  /**
+   * Returns an unmodifiable {@link List} view of this sequence. Nothing is copied,
+   * all reads are delegated to this sequence.
+   * @return read-only list view
+   */
+  List<E> asList();
+
+  /**
+   * Visitor for the chunks of a sequence.
+   *
+   * @author Leo Woerteler
+   */
+  interface ChunkVisitor {
+    /**
+     * Visits the elements of a chunk in the range {@code [from, to)}.
+     * @param chunk chunk, must not be modified
+     * @param from first position in the chunk (inclusive)
+     * @param to last position in the chunk (exclusive)
+     */
+    void visit(final Object[] chunk, final int from, final int to);
+  }
 }
@@ -0,0 +1,135 @@
+package de.woerteler.persistent;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes and reads the elements of persistent structures in their binary format, see
+ * {@link TrieSequence#write(DataOutput, Serializer)} and
+ * {@link de.woerteler.persistent.map.ImmutableMap#write(DataOutput, Serializer,
+ * Serializer)}.
+ *
+ * @author Leo Woerteler
+ * @param <T> element type
+ */
+public interface Serializer<T> {
+  /** Serializer for integers. */
+  Serializer<Integer> INT = new Serializer<Integer>() {
+    @Override
+    public void write(final DataOutput out, final Integer value) throws IOException {
+      writeVarInt(out, value << 1 ^ value >> 31);
+    }
+
+    @Override
+    public Integer read(final DataInput in) throws IOException {
+      final int v = readVarInt(in);
+      return v >>> 1 ^ -(v & 1);
+    }
+
+    @Override
+    public boolean stableHash() {
+      return true;
+    }
+  };
+
+  /** Serializer for long integers. */
+  Serializer<Long> LONG = new Serializer<Long>() {
+    @Override
+    public void write(final DataOutput out, final Long value) throws IOException {
+      out.writeLong(value);
+    }
+
+    @Override
+    public Long read(final DataInput in) throws IOException {
+      return in.readLong();
+    }
+
+    @Override
+    public boolean stableHash() {
+      return true;
+    }
+  };
+
+  /** Serializer for strings in UTF-8. */
+  Serializer<String> STRING = new Serializer<String>() {
+    @Override
+    public void write(final DataOutput out, final String value) throws IOException {
+      final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeVarInt(out, bytes.length);
+      out.write(bytes);
+    }
+
+    @Override
+    public String read(final DataInput in) throws IOException {
+      final byte[] bytes = new byte[readVarInt(in)];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean stableHash() {
+      return true;
+    }
+  };
+
+  /**
+   * Writes an element.
+   * @param out output
+   * @param value element, may be {@code null} if the serializer supports it
+   * @throws IOException I/O exception
+   */
+  void write(DataOutput out, T value) throws IOException;
+
+  /**
+   * Reads an element.
+   * @param in input
+   * @return element
+   * @throws IOException I/O exception
+   */
+  T read(DataInput in) throws IOException;
+
+  /**
+   * Checks if the hash codes of the elements are the same in every JVM, as for strings
+   * and numbers. Maps store the hash codes of their keys and reuse them on reading if
+   * this returns {@code true}, otherwise the keys are rehashed. Hash codes that depend
+   * on object identity, like those of enums, are not stable, so only serializers that
+   * know their hash codes are stable should override this.
+   * @return {@code true} if the hash codes are stable, {@code false} by default
+   */
+  default boolean stableHash() {
+    return false;
+  }
+
+  /**
+   * Writes a non-negative integer in one to five bytes, seven bits at a time.
+   * @param out output
+   * @param value value
+   * @throws IOException I/O exception
+   */
+  static void writeVarInt(final DataOutput out, final int value) throws IOException {
+    int v = value;
+    while((v & ~0x7F) != 0) {
+      out.writeByte(v & 0x7F | 0x80);
+      v >>>= 7;
+    }
+    out.writeByte(v);
+  }
+
+  /**
+   * Reads an integer written by {@link #writeVarInt(DataOutput, int)}.
+   * @param in input
+   * @return value
+   * @throws IOException I/O exception
+   */
+  static int readVarInt(final DataInput in) throws IOException {
+    int v = 0;
+    for(int shift = 0; shift < 35; shift += 7) {
+      final int b = in.readByte();
+      v |= (b & 0x7F) << shift;
+      if(b >= 0) return v;
+    }
+    throw new IOException("Malformed variable-length integer");
+  }
+}
@@ -1,9 +1,26 @@
 package de.woerteler.persistent;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.lang.reflect.Array;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 /**
  * An immutable sequence.
@@ -21,6 +38,16 @@ public final class TrieSequence<T> extends AbstractSequence<T> {
   public static final int SIZE = 1 << BITS;
   /** Bit mask for the last {@code BITS} bits in an {@code int}. */
   private static final int LAST = SIZE - 1;
+  /** Minimum number of leaves in a subtree for its children to be processed in parallel. */
+  private static final int PARALLEL = 1 << 11;
+  /** Minimum number of elements for bulk operations to be split into parallel tasks. */
+  private static final int SPLIT = PARALLEL << BITS;
+
+  /** 31 to the power of the number of elements in a leaf. */
+  static final int LEAF_POW = pow(31, SIZE);
+
+  /** Fork-join pool for parallel operations. */
+  private static volatile ForkJoinPool pool = ForkJoinPool.commonPool();
 
   /** the empty sequence. */
   public static final TrieSequence<?> EMPTY =
@@ -112,6 +139,45 @@ public final class TrieSequence<T> extends AbstractSequence<T> {
     return new TrieSequence<T>(root, cache);
   }
 
+  /**
+   * Writes this sequence as its number of elements followed by the elements chunk by
+   * chunk.
+   * @param out output
+   * @param ser serializer for the elements
+   * @throws IOException I/O exception
+   */
+  @SuppressWarnings("unchecked")
+  public void write(final DataOutput out, final Serializer<? super T> ser)
+      throws IOException {
+    Serializer.writeVarInt(out, size());
+    final Iterator<Object[]> chunks = chunkIterator();
+    while(chunks.hasNext()) {
+      for(final Object o : chunks.next()) {
+        ser.write(out, (T) o);
+      }
+    }
+  }
+
+  /**
+   * Reads a sequence written by {@link #write(DataOutput, Serializer)}. The leaves
+   * are filled directly and the trie is built bottom-up.
+   * @param <T> element type
+   * @param in input
+   * @param ser serializer for the elements
+   * @return the sequence
+   * @throws IOException I/O exception
+   */
+  public static <T> TrieSequence<T> read(final DataInput in, final Serializer<? extends T> ser)
+      throws IOException {
+    final int n = Serializer.readVarInt(in);
+    if(n < 0) throw new IOException("Invalid size: " + n);
+    final Builder<T> bld = new Builder<T>();
+    for(int i = 0; i < n; i++) {
+      bld.add(ser.read(in));
+    }
+    return bld.build();
+  }
+
   @Override
   public int size() {
     return (root == null ? 0 : root.size * SIZE) + cache.length;
@@ -136,14 +202,24 @@ public final class TrieSequence<T> extends AbstractSequence<T> {
   @Override
   @SuppressWarnings("unchecked")
   public T get(final int pos) {
+    return (T) chunk(pos)[pos & LAST];
+  }
+
+  /**
+   * Returns the chunk containing the given position. All chunks start at a multiple
+   * of {@link #SIZE}, so the position inside it is {@code pos & LAST}.
+   * @param pos position
+   * @return leaf or insertion buffer containing the position
+   */
+  Object[] chunk(final int pos) {
     if(root != null && pos < root.size << BITS) {
       Node nd = root;
       while(nd.level > 0) {
         nd = (Node) nd.subs[(pos >>> (nd.level * BITS)) & LAST];
       }
-      return (T) nd.subs[pos & LAST];
+      return nd.subs;
     }
-    return (T) cache[pos & LAST];
+    return cache;
   }
 
   /**
@@ -208,6 +284,265 @@ public final class TrieSequence<T> extends AbstractSequence<T> {
     return new TrieSequence<T>(node, seq.cache);
   }
 
+  /**
+   * Creates a sequence with the results of the given function for all elements. The
+   * result has the same shape as this sequence, so it is built leaf by leaf. Big
+   * sequences are processed in parallel.
+   * @param <R> result type
+   * @param fn function to apply
+   * @return mapped sequence
+   */
+  @SuppressWarnings("unchecked")
+  public <R> TrieSequence<R> map(final Function<? super T, ? extends R> fn) {
+    if(this == EMPTY) return empty();
+    final Function<Object, Object> f = (Function<Object, Object>) fn;
+    final Node nr = root == null ? null : root.size < PARALLEL ? root.map(f) :
+      invoke(() -> root.map(f));
+    final Object[] nc = new Object[cache.length];
+    for(int i = 0; i < nc.length; i++) {
+      nc[i] = f.apply(cache[i]);
+    }
+    return new TrieSequence<R>(nr, nc);
+  }
+
+  /**
+   * Creates a sequence with all elements satisfying the given predicate, in order.
+   * Big sequences are processed in parallel.
+   * @param pred predicate
+   * @return filtered sequence
+   */
+  @SuppressWarnings("unchecked")
+  public TrieSequence<T> filter(final Predicate<? super T> pred) {
+    return collect((b, e) -> {
+      if(pred.test((T) e)) {
+        b.add((T) e);
+      }
+    });
+  }
+
+  /**
+   * Creates a sequence with the concatenated results of the given function for all
+   * elements. Big sequences are processed in parallel.
+   * @param <R> result type
+   * @param fn function returning the elements for each element of this sequence
+   * @return resulting sequence
+   */
+  @SuppressWarnings("unchecked")
+  public <R> TrieSequence<R> flatMap(
+      final Function<? super T, ? extends Iterable<? extends R>> fn) {
+    return collect((b, e) -> {
+      for(final R r : fn.apply((T) e)) {
+        b.add(r);
+      }
+    });
+  }
+
+  /**
+   * Feeds all elements into a builder using the given step function.
+   * @param <R> result type
+   * @param step function adding the results for an element to the builder
+   * @return built sequence
+   */
+  private <R> TrieSequence<R> collect(final BiConsumer<Builder<R>, Object> step) {
+    if(this == EMPTY) return empty();
+    final Builder<R> b = root == null ? new Builder<R>() :
+      root.size < PARALLEL ? root.collect(step, new Builder<R>()) :
+      invoke(() -> root.collect(step, new Builder<R>()));
+    for(final Object e : cache) {
+      step.accept(b, e);
+    }
+    return b.build();
+  }
+
+  /**
+   * Runs the given computation in the fork-join pool.
+   * @param <R> result type
+   * @param fn computation
+   * @return result
+   */
+  static <R> R invoke(final Supplier<R> fn) {
+    return pool.invoke(new Task<R>(fn));
+  }
+
+  /**
+   * Sets the fork-join pool used for parallel operations on big sequences. The
+   * default is the {@link ForkJoinPool#commonPool() common pool}.
+   * @param fjp fork-join pool
+   */
+  public static void setPool(final ForkJoinPool fjp) {
+    if(fjp == null) throw new NullPointerException("pool");
+    pool = fjp;
+  }
+
+  /**
+   * Getter.
+   * @return the fork-join pool used for parallel operations on big sequences
+   */
+  public static ForkJoinPool getPool() {
+    return pool;
+  }
+
+  /**
+   * Computes a result for the positions {@code [0, n)}. Ranges of at least
+   * {@link #SPLIT} positions are halved at leaf boundaries and processed in
+   * parallel, smaller ones are passed to the given function directly.
+   * @param <R> result type
+   * @param n number of positions
+   * @param fn function computing the result for a range {@code [lo, hi)}
+   * @param comb function combining the results of adjacent ranges
+   * @return result
+   */
+  private static <R> R split(final int n, final BiFunction<Integer, Integer, R> fn,
+      final BinaryOperator<R> comb) {
+    return n < SPLIT ? fn.apply(0, n) : invoke(() -> split(0, n, fn, comb));
+  }
+
+  /**
+   * Recursive {@link #split(int, BiFunction, BinaryOperator)} helper, must be called
+   * from inside the fork-join pool.
+   * @param <R> result type
+   * @param lo first position (inclusive)
+   * @param hi last position (exclusive)
+   * @param fn function computing the result for a range {@code [lo, hi)}
+   * @param comb function combining the results of adjacent ranges
+   * @return result
+   */
+  @SuppressWarnings("unchecked")
+  private static <R> R split(final int lo, final int hi,
+      final BiFunction<Integer, Integer, R> fn, final BinaryOperator<R> comb) {
+    if(hi - lo < SPLIT) return fn.apply(lo, hi);
+    final int mid = lo + (hi - lo) / 2 & ~LAST;
+    final Object[] res = invokeAll(new Supplier<?>[] {
+        () -> split(lo, mid, fn, comb), () -> split(mid, hi, fn, comb) });
+    return comb.apply((R) res[0], (R) res[1]);
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if(obj == this) return true;
+    if(!(obj instanceof TrieSequence)) return super.equals(obj);
+    final TrieSequence<?> other = (TrieSequence<?>) obj;
+    final int n = size();
+    if(n != other.size()) return false;
+    // both sequences have their leaves at the same positions
+    final AtomicBoolean differ = new AtomicBoolean();
+    return split(n, (lo, hi) -> {
+      int p = lo;
+      while(p < hi && !differ.get()) {
+        final Object[] a = chunk(p), b = other.chunk(p);
+        final int off = p & LAST, to = Math.min(a.length, off + hi - p);
+        for(int i = off; i < to; i++) {
+          if(a[i] == null ? b[i] != null : !a[i].equals(b[i])) {
+            differ.set(true);
+            return false;
+          }
+        }
+        p += to - off;
+      }
+      return !differ.get();
+    }, (a, b) -> a && b);
+  }
+
+  /**
+   * {@inheritDoc} The hash codes of the leaves and inner nodes are cached, so after
+   * the first call only nodes created since then have to be hashed. This assumes that
+   * the hash codes of the elements don't change.
+   */
+  @Override
+  public int hashCode() {
+    int h = root == null ? 0 : root.size < PARALLEL ? root.hash() : invoke(root::hash);
+    for(final Object e : cache) {
+      h = 31 * h + (e == null ? 0 : e.hashCode());
+    }
+    // the initial value 1 of the java.util.List hash is multiplied with 31^size
+    return pow(31, size()) + h;
+  }
+
+  /**
+   * Calculates {@code base} to the power of {@code exp} with {@code int} overflow.
+   * @param base base
+   * @param exp non-negative exponent
+   * @return {@code base^exp}
+   */
+  static int pow(final int base, final int exp) {
+    int res = 1, b = base;
+    for(int e = exp; e != 0; e >>>= 1) {
+      if((e & 1) != 0) {
+        res *= b;
+      }
+      b *= b;
+    }
+    return res;
+  }
+
+  @Override
+  public int indexOf(final T elem) {
+    final AtomicInteger found = new AtomicInteger(Integer.MAX_VALUE);
+    split(size(), (lo, hi) -> {
+      int p = lo;
+      // stop as soon as a match before the current position is known
+      while(p < hi && p < found.get()) {
+        final Object[] chunk = chunk(p);
+        final int off = p & LAST, to = Math.min(chunk.length, off + hi - p);
+        for(int i = off; i < to; i++) {
+          if(elem == null ? chunk[i] == null : elem.equals(chunk[i])) {
+            final int pos = p + i - off;
+            found.accumulateAndGet(pos, Math::min);
+            return null;
+          }
+        }
+        p += to - off;
+      }
+      return null;
+    }, (a, b) -> null);
+    final int res = found.get();
+    return res == Integer.MAX_VALUE ? -1 : res;
+  }
+
+  /**
+   * Runs the given computations in parallel, must be called from inside the
+   * fork-join pool.
+   * @param fns computations
+   * @return results in the same order
+   */
+  static Object[] invokeAll(final Supplier<?>[] fns) {
+    final Task<?>[] tasks = new Task<?>[fns.length];
+    for(int i = 0; i < fns.length; i++) {
+      tasks[i] = new Task<Object>(fns[i]);
+    }
+    ForkJoinTask.invokeAll(tasks);
+    final Object[] res = new Object[fns.length];
+    for(int i = 0; i < fns.length; i++) {
+      res[i] = tasks[i].join();
+    }
+    return res;
+  }
+
+  /**
+   * Fork-join task wrapping a computation.
+   * @author Leo Woerteler
+   * @param <R> result type
+   */
+  private static final class Task<R> extends RecursiveTask<R> {
+    /** Serial version UID. */
+    private static final long serialVersionUID = 1L;
+    /** Computation. */
+    private final transient Supplier<? extends R> fn;
+
+    /**
+     * Constructor.
+     * @param fn computation
+     */
+    Task(final Supplier<? extends R> fn) {
+      this.fn = fn;
+    }
+
+    @Override
+    protected R compute() {
+      return fn.get();
+    }
+  }
+
   @Override
   public String toString() {
     final StringBuilder sb = new StringBuilder(getClass().getSimpleName());
@@ -341,6 +676,31 @@ public final class TrieSequence<T> extends AbstractSequence<T> {
     };
   }
 
+  @Override
+  public Spliterator<T> spliterator() {
+    return new TrieSpliterator<T>(this, 0, size());
+  }
+
+  @Override
+  public void forEachChunk(final ChunkVisitor visitor) {
+    if(root != null) {
+      root.forEachChunk(visitor);
+    }
+    if(cache.length > 0) {
+      visitor.visit(cache, 0, cache.length);
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void forEach(final Consumer<? super T> action) {
+    forEachChunk((chunk, from, to) -> {
+      for(int i = from; i < to; i++) {
+        action.accept((T) chunk[i]);
+      }
+    });
+  }
+
   @Override
   public Object[] toArray() {
     return writeTo(new Object[size()]);
@@ -359,15 +719,188 @@ public final class TrieSequence<T> extends AbstractSequence<T> {
    * @return {@code arr} for convenience
    */
   private <O> O[] writeTo(final O[] arr) {
-    final int pos = 0;
-    final Iterator<Object[]> chunks = chunkIterator();
-    while(chunks.hasNext()) {
-      final Object[] chunk = chunks.next();
-      System.arraycopy(chunk, 0, arr, pos, chunk.length);
-    }
+    split(size(), (lo, hi) -> {
+      int p = lo;
+      while(p < hi) {
+        final Object[] chunk = chunk(p);
+        final int off = p & LAST, len = Math.min(chunk.length - off, hi - p);
+        System.arraycopy(chunk, off, arr, p, len);
+        p += len;
+      }
+      return null;
+    }, (a, b) -> null);
     return arr;
   }
 
+  /**
+   * Builds a sequence by appending elements in place. Builders can be concatenated
+   * without copying their elements, which happens only once when the sequence is
+   * built.
+   * @author Leo Woerteler
+   * @param <T> element type
+   */
+  public static final class Builder<T> {
+    /** Finished segments, all full except for those that were concatenated. */
+    private final ArrayList<Object[]> segments = new ArrayList<Object[]>();
+    /** Current segment. */
+    private Object[] curr = new Object[SIZE];
+    /** Number of elements in the current segment. */
+    private int pos;
+
+    /**
+     * Appends an element.
+     * @param elem element
+     * @return this builder for convenience
+     */
+    public Builder<T> add(final T elem) {
+      curr[pos++] = elem;
+      if(pos == SIZE) {
+        segments.add(curr);
+        curr = new Object[SIZE];
+        pos = 0;
+      }
+      return this;
+    }
+
+    /**
+     * Appends all elements of the given builder, which must not be used afterwards.
+     * Only the segments are transferred, the elements aren't copied.
+     * @param other builder to append
+     * @return this builder for convenience
+     */
+    public Builder<T> addAll(final Builder<? extends T> other) {
+      if(pos > 0) {
+        segments.add(Arrays.copyOf(curr, pos));
+        pos = 0;
+      }
+      segments.addAll(other.segments);
+      if(other.pos > 0) {
+        segments.add(Arrays.copyOf(other.curr, other.pos));
+      }
+      return this;
+    }
+
+    /**
+     * Creates a sequence from the elements added so far. Full segments at leaf
+     * boundaries become leaves directly, the other elements are copied once.
+     * @return the sequence
+     */
+    public TrieSequence<T> build() {
+      final ArrayList<Node> leaves = new ArrayList<Node>();
+      Object[] leaf = new Object[SIZE];
+      int off = 0;
+      final int ns = segments.size();
+      for(int i = 0; i <= ns; i++) {
+        final Object[] seg = i < ns ? segments.get(i) : curr;
+        final int len = i < ns ? seg.length : pos;
+        if(off == 0 && len == SIZE) {
+          leaves.add(new Node(seg));
+        } else {
+          int p = 0;
+          while(p < len) {
+            final int n = Math.min(len - p, SIZE - off);
+            System.arraycopy(seg, p, leaf, off, n);
+            p += n;
+            off += n;
+            if(off == SIZE) {
+              leaves.add(new Node(leaf));
+              leaf = new Object[SIZE];
+              off = 0;
+            }
+          }
+        }
+      }
+      if(leaves.isEmpty() && off == 0) return empty();
+      final Node root = leaves.isEmpty() ? null :
+        Node.build(leaves.toArray(new Node[leaves.size()]), 0, leaves.size());
+      return new TrieSequence<T>(root, Arrays.copyOf(leaf, off));
+    }
+  }
+
+  /**
+   * Spliterator over a range of a sequence. It splits at the boundary of the biggest
+   * subtree that lies in the middle half of its range and consumes whole leaves at a
+   * time.
+   * @author Leo Woerteler
+   * @param <T> element type
+   */
+  private static final class TrieSpliterator<T> implements Spliterator<T> {
+    /** Sequence. */
+    private final TrieSequence<T> seq;
+    /** End of the range (exclusive). */
+    private final int end;
+    /** Current position. */
+    private int pos;
+    /** Chunk containing the current position, {@code null} if not yet known. */
+    private Object[] curr;
+
+    /**
+     * Constructor.
+     * @param seq sequence
+     * @param pos start of the range (inclusive)
+     * @param end end of the range (exclusive)
+     */
+    TrieSpliterator(final TrieSequence<T> seq, final int pos, final int end) {
+      this.seq = seq;
+      this.pos = pos;
+      this.end = end;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean tryAdvance(final Consumer<? super T> action) {
+      if(pos >= end) return false;
+      if(curr == null || (pos & LAST) == 0) {
+        curr = seq.chunk(pos);
+      }
+      action.accept((T) curr[pos++ & LAST]);
+      return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEachRemaining(final Consumer<? super T> action) {
+      int p = pos;
+      pos = end;
+      while(p < end) {
+        final Object[] chunk = seq.chunk(p);
+        final int off = p & LAST, to = Math.min(chunk.length, off + end - p);
+        for(int i = off; i < to; i++) {
+          action.accept((T) chunk[i]);
+        }
+        p += to - off;
+      }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+      final int len = end - pos;
+      if(len < 2 * SIZE) return null;
+      // take the biggest subtree boundary in the middle half
+      final int hi = end - len / 4, lo = pos + len / 4;
+      for(int shift = 30 / BITS * BITS; shift >= BITS; shift -= BITS) {
+        final int mid = hi >>> shift << shift;
+        if(mid >= lo) {
+          final Spliterator<T> prefix = new TrieSpliterator<T>(seq, pos, mid);
+          pos = mid;
+          curr = null;
+          return prefix;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public long estimateSize() {
+      return end - pos;
+    }
+
+    @Override
+    public int characteristics() {
+      return SIZED | SUBSIZED | ORDERED | IMMUTABLE;
+    }
+  }
+
   /**
    * Node of the sequence's tree.
    * @author Leo Woerteler
@@ -379,6 +912,15 @@ public final class TrieSequence<T> extends AbstractSequence<T> {
     final int level;
     /** Child nodes. */
     final Object[] subs;
+    /** 31 to the power of the number of elements in this node. */
+    final int pow;
+    /**
+     * Polynomial hash of the elements in this node with initial value 0, lazily
+     * computed. {@code 0} if not yet known or if {@link #hashIsZero} is set.
+     */
+    private int hash;
+    /** Flag for a computed hash that is {@code 0}, like in {@link String}. */
+    private boolean hashIsZero;
 
     /**
      * Constructor for leaf nodes.
@@ -398,6 +940,77 @@ public final class TrieSequence<T> extends AbstractSequence<T> {
       subs = sub;
       size = s;
       level = lvl;
+      pow = TrieSequence.pow(LEAF_POW, s);
+    }
+
+    /**
+     * Returns the polynomial hash {@code sum(e[i] * 31^(n - 1 - i))} of the {@code n}
+     * elements in this node. The hash of a concatenation is {@code a * 31^m + b}, so
+     * it's combined from the cached hashes of the children. The children of big nodes
+     * are hashed in parallel.
+     * @return hash of the elements
+     */
+    int hash() {
+      int h = hash;
+      if(h == 0 && !hashIsZero) {
+        if(level == 0) {
+          for(final Object e : subs) {
+            h = 31 * h + (e == null ? 0 : e.hashCode());
+          }
+        } else {
+          if(size >= PARALLEL && !((Node) subs[0]).hashed()) {
+            final Supplier<?>[] fns = new Supplier<?>[subs.length];
+            for(int i = 0; i < subs.length; i++) {
+              final Node sub = (Node) subs[i];
+              fns[i] = () -> sub.hash();
+            }
+            invokeAll(fns);
+          }
+          for(final Object sub : subs) {
+            final Node nd = (Node) sub;
+            h = h * nd.pow + nd.hash();
+          }
+        }
+        if(h == 0) {
+          hashIsZero = true;
+        } else {
+          hash = h;
+        }
+      }
+      return h;
+    }
+
+    /**
+     * Checks if the hash of this node is already computed.
+     * @return result of check
+     */
+    private boolean hashed() {
+      return hash != 0 || hashIsZero;
+    }
+
+    /**
+     * Builds a node from consecutive leaves bottom-up. The result has the same shape
+     * as if the leaves were inserted one by one with {@link #insert(Node)}.
+     * @param leaves leaves
+     * @param from position of the first leaf
+     * @param n number of leaves
+     * @return the node
+     */
+    static Node build(final Node[] leaves, final int from, final int n) {
+      if(n == 1) return leaves[from];
+      // number of leaves in each full child
+      int lvl = 1;
+      long per = 1;
+      while(per * SIZE < n) {
+        per *= SIZE;
+        lvl++;
+      }
+      final int p = (int) per, k = (n + p - 1) / p;
+      final Node[] subs = new Node[k];
+      for(int i = 0; i < k; i++) {
+        subs[i] = build(leaves, from + i * p, Math.min(p, n - i * p));
+      }
+      return new Node(subs, n, lvl);
     }
 
     /**
@@ -427,6 +1040,85 @@ public final class TrieSequence<T> extends AbstractSequence<T> {
       return new Node(newSubs, size + 1, level);
     }
 
+    /**
+     * Recursive {@link TrieSequence#map(Function)} helper, processing the children of
+     * big nodes in parallel.
+     * @param fn function to apply
+     * @return node of the same shape with the mapped elements
+     */
+    @SuppressWarnings("unchecked")
+    Node map(final Function<Object, Object> fn) {
+      final int n = subs.length;
+      if(level == 0) {
+        final Object[] ns = new Object[n];
+        for(int i = 0; i < n; i++) {
+          ns[i] = fn.apply(subs[i]);
+        }
+        return new Node(ns);
+      }
+      final Node[] ns;
+      if(size < PARALLEL) {
+        ns = new Node[n];
+        for(int i = 0; i < n; i++) {
+          ns[i] = ((Node) subs[i]).map(fn);
+        }
+      } else {
+        final Supplier<Node>[] fns = (Supplier<Node>[]) new Supplier<?>[n];
+        for(int i = 0; i < n; i++) {
+          final Node sub = (Node) subs[i];
+          fns[i] = () -> sub.map(fn);
+        }
+        ns = Arrays.copyOf(invokeAll(fns), n, Node[].class);
+      }
+      return new Node(ns, size, level);
+    }
+
+    /**
+     * Recursive {@link TrieSequence#collect(BiConsumer)} helper, processing the
+     * children of big nodes in parallel.
+     * @param <R> result type
+     * @param step function adding the results for an element to the builder
+     * @param b builder for the results
+     * @return the builder
+     */
+    @SuppressWarnings("unchecked")
+    <R> Builder<R> collect(final BiConsumer<Builder<R>, Object> step, final Builder<R> b) {
+      if(level == 0) {
+        for(final Object e : subs) {
+          step.accept(b, e);
+        }
+      } else if(size < PARALLEL) {
+        for(final Object sub : subs) {
+          ((Node) sub).collect(step, b);
+        }
+      } else {
+        final Supplier<Builder<R>>[] fns =
+            (Supplier<Builder<R>>[]) new Supplier<?>[subs.length];
+        for(int i = 0; i < subs.length; i++) {
+          final Node sub = (Node) subs[i];
+          fns[i] = () -> sub.collect(step, new Builder<R>());
+        }
+        for(final Object part : invokeAll(fns)) {
+          b.addAll((Builder<R>) part);
+        }
+      }
+      return b;
+    }
+
+    /**
+     * Recursive {@link TrieSequence#forEachChunk(ChunkVisitor)} helper.
+     * @param visitor visitor for the leaves
+     */
+    public void forEachChunk(final ChunkVisitor visitor) {
+      if(level == 0) {
+        visitor.visit(subs, 0, subs.length);
+      } else {
+        for(final Object sub : subs) {
+          ((Node) sub).forEachChunk(visitor);
+        }
+      }
+    }
+
     /**
      * Recursive {@link TrieSequence#toString()} helper.
      * @param sb string builder for the result
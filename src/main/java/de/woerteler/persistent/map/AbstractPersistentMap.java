@@ -1,7 +1,17 @@
 package de.woerteler.persistent.map;
 
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * The abstract base class for persistent maps. It provides equality checks and
@@ -32,6 +42,199 @@ public abstract class AbstractPersistentMap<K, V> implements PersistentMap<K, V>
     return res;
   }
 
+  @Override
+  public PersistentMap<K, V> putAll(final K[] keys, final V[] values) {
+    if(keys.length != values.length) throw new IllegalArgumentException(
+        "keys: " + keys.length + " values: " + values.length);
+    PersistentMap<K, V> res = this;
+    for(int i = 0; i < keys.length; i++) {
+      res = res.put(keys[i], values[i]);
+    }
+    return res;
+  }
+
+  @Override
+  public PersistentMap<K, V> removeAll(final Iterable<? extends K> keys) {
+    PersistentMap<K, V> res = this;
+    for(final K k : keys) {
+      res = res.remove(k);
+    }
+    return res;
+  }
+
+  @Override
+  public PersistentMap<K, V> removeIf(final BiPredicate<? super K, ? super V> pred) {
+    PersistentMap<K, V> res = this;
+    for(final PersistentEntry<K, V> e : entrySequence()) {
+      if(pred.test(e.getKey(), e.getValue())) {
+        res = res.remove(e.getKey());
+      }
+    }
+    return res;
+  }
+
+  @Override
+  public void forEach(final BiConsumer<? super K, ? super V> action) {
+    for(final PersistentEntry<K, V> e : entrySequence()) {
+      action.accept(e.getKey(), e.getValue());
+    }
+  }
+
+  @Override
+  public void forEachKey(final Consumer<? super K> action) {
+    for(final K k : keySequence()) {
+      action.accept(k);
+    }
+  }
+
+  @Override
+  public <A> A fold(final A init, final Accumulator<A, ? super K, ? super V> fun) {
+    A res = init;
+    for(final PersistentEntry<K, V> e : entrySequence()) {
+      res = fun.accumulate(res, e.getKey(), e.getValue());
+    }
+    return res;
+  }
+
+  @Override
+  public Stream<PersistentEntry<K, V>> stream() {
+    return entrySequence().stream();
+  }
+
+  @Override
+  public Stream<PersistentEntry<K, V>> parallelStream() {
+    return entrySequence().parallelStream();
+  }
+
+  @Override
+  public Map<K, V> asMap() {
+    return new MapView<K, V>(this);
+  }
+
+  /**
+   * Read-only {@link Map} view of a persistent map.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   * @param <K> The key type.
+   * @param <V> The value type.
+   */
+  private static final class MapView<K, V> extends AbstractMap<K, V> {
+
+    /** The underlying map. */
+    final PersistentMap<K, V> map;
+
+    /**
+     * Constructor.
+     * 
+     * @param map The underlying map.
+     */
+    MapView(final PersistentMap<K, V> map) {
+      this.map = map;
+    }
+
+    @Override
+    public int size() {
+      return map.size();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(final Object key) {
+      return map.get((K) key);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean containsKey(final Object key) {
+      return map.containsKey((K) key);
+    }
+
+    @Override
+    public void forEach(final BiConsumer<? super K, ? super V> action) {
+      map.forEach(action);
+    }
+
+    @Override
+    public Set<K> keySet() {
+      return new AbstractSet<K>() {
+
+        @Override
+        public Iterator<K> iterator() {
+          return map.keySequence().iterator();
+        }
+
+        @Override
+        public int size() {
+          return map.size();
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+          return containsKey(o);
+        }
+
+      };
+    }
+
+    @Override
+    public Collection<V> values() {
+      return new AbstractCollection<V>() {
+
+        @Override
+        public Iterator<V> iterator() {
+          return map.valueSequence().iterator();
+        }
+
+        @Override
+        public int size() {
+          return map.size();
+        }
+
+      };
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+      return new AbstractSet<Entry<K, V>>() {
+
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+          final Iterator<PersistentEntry<K, V>> iter = map.entrySequence().iterator();
+          return new Iterator<Entry<K, V>>() {
+
+            @Override
+            public boolean hasNext() {
+              return iter.hasNext();
+            }
+
+            @Override
+            public Entry<K, V> next() {
+              final PersistentEntry<K, V> e = iter.next();
+              return new SimpleImmutableEntry<K, V>(e.getKey(), e.getValue());
+            }
+
+          };
+        }
+
+        @Override
+        public int size() {
+          return map.size();
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+          if(!(o instanceof Entry)) return false;
+          final Entry<?, ?> e = (Entry<?, ?>) o;
+          if(!containsKey(e.getKey())) return false;
+          final V v = get(e.getKey());
+          return v == null ? e.getValue() == null : v.equals(e.getValue());
+        }
+
+      };
+    }
+
+  }
+
   @Override
   public boolean equals(final Object obj) {
     if(obj == this) return true;
@@ -1,5 +1,12 @@
 package de.woerteler.persistent.map;
 
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import de.woerteler.persistent.map.PersistentMap.Accumulator;
+
 /**
  * Inner node of a {@link ImmutableMap}.
  *
@@ -24,6 +31,43 @@ final class Branch extends TrieNode {
     assert verify();
   }
 
+  /**
+   * Joins maps whose keys differ in the first level of the trie into one map. The
+   * children of the roots are grafted into a single branch without rehashing, so
+   * the keys of different roots must never fall into the same slot.
+   * @param roots roots of the maps
+   * @return root of the joined map
+   */
+  static TrieNode join(final TrieNode[] roots) {
+    final TrieNode[] ch = new TrieNode[KIDS];
+    int u = 0, s = 0;
+    for(final TrieNode root : roots) {
+      if(root instanceof Branch) {
+        final Branch b = (Branch) root;
+        for(int i = 0; i < KIDS; i++) {
+          if(b.kids[i] != null) {
+            assert ch[i] == null;
+            ch[i] = b.kids[i];
+          }
+        }
+        u |= b.used;
+      } else if(root.size != 0) {
+        final int key = key(root instanceof Leaf ? ((Leaf) root).hash : ((List) root).hash, 0);
+        assert ch[key] == null;
+        ch[key] = root;
+        u |= 1 << key;
+      }
+      s += root.size;
+    }
+    if(u == 0) return EMPTY;
+    if(Integer.bitCount(u) == 1) {
+      final TrieNode single = ch[Integer.numberOfTrailingZeros(u)];
+      // level-independent nodes don't need a branch
+      if(!(single instanceof Branch)) return single;
+    }
+    return new Branch(ch, u, s);
+  }
+
   /**
    * Copies the children array.
    * This is faster than {@code kids.clone()} according to
@@ -43,6 +87,7 @@ final class Branch extends TrieNode {
     final int bs, rem;
     if(sub != null) {
       nsub = sub.insert(h, k, v, l + 1);
+      if(nsub == sub) return this;
       bs = used;
       rem = sub.size;
     } else {
@@ -55,6 +100,86 @@ final class Branch extends TrieNode {
     return new Branch(ks, bs, size - rem + nsub.size);
   }
 
+  @Override
+  TrieNode update(final int h, final Object k, final Function<Object, Object> fun,
+      final int l) {
+    final int key = key(h, l);
+    final TrieNode sub = kids[key];
+    if(sub == null) {
+      final TrieNode[] ks = copyKids();
+      ks[key] = new Leaf(h, k, fun.apply(null));
+      return new Branch(ks, used | 1 << key, size + 1);
+    }
+    final TrieNode nsub = sub.update(h, k, fun, l + 1);
+    if(nsub == sub) return this;
+    final TrieNode[] ks = copyKids();
+    ks[key] = nsub;
+    return new Branch(ks, used, size - sub.size + nsub.size);
+  }
+
+  /**
+   * Copies the used children into the given array, in slot order.
+   * @param out array with room for at least {@code Integer.bitCount(used)} nodes
+   * @return number of copied children
+   */
+  int usedKids(final TrieNode[] out) {
+    int n = 0;
+    for(final TrieNode sub : kids) {
+      if(sub != null) {
+        out[n++] = sub;
+      }
+    }
+    return n;
+  }
+
+  @Override
+  TrieNode insertAll(final int[] hs, final Object[] ks, final Object[] vs, final int from,
+      final int to, final int l) {
+    return fill(this, kids, used, size, hs, ks, vs, from, to, l);
+  }
+
+  /**
+   * Inserts the given bindings below the given children and creates a branch from
+   * the result. The children array of a new branch is modified in place, the one of
+   * an existing branch is copied when the first child changes, so every child is
+   * copied at most once per batch.
+   * @param orig existing branch owning the children, {@code null} for a new branch
+   * @param ch children array
+   * @param u bit array
+   * @param s size of the children
+   * @param hs hash codes of the keys
+   * @param ks keys to insert
+   * @param vs values to insert
+   * @param from first position in the arrays (inclusive)
+   * @param to last position in the arrays (exclusive)
+   * @param l level
+   * @return the new branch, {@code orig} if no child changed
+   */
+  static Branch fill(final Branch orig, final TrieNode[] ch, final int u, final int s,
+      final int[] hs, final Object[] ks, final Object[] vs, final int from, final int to,
+      final int l) {
+    TrieNode[] nch = orig == null ? ch : null;
+    int nu = u, ns = s;
+    int i = from;
+    while(i < to) {
+      final int key = key(hs[i], l);
+      int j = i + 1;
+      while(j < to && key(hs[j], l) == key) {
+        j++;
+      }
+      final TrieNode sub = ch[key];
+      final TrieNode nsub = (sub == null ? EMPTY : sub).insertAll(hs, ks, vs, i, j, l + 1);
+      if(nsub != sub) {
+        if(nch == null) nch = orig.copyKids();
+        nch[key] = nsub;
+        nu |= 1 << key;
+        ns += nsub.size - (sub == null ? 0 : sub.size);
+      }
+      i = j;
+    }
+    return nch == null ? orig : new Branch(nch, nu, ns);
+  }
+
   @Override
   TrieNode delete(final int h, final Object k, final int l) {
     final int key = key(h, l);
@@ -66,6 +191,7 @@ final class Branch extends TrieNode {
     final int nu;
     if(nsub == null) {
       nu = used ^ 1 << key;
+      if(nu == 0) return null;
       if(Integer.bitCount(nu) == 1) {
         final TrieNode single = kids[Integer.numberOfTrailingZeros(nu)];
         // check whether the child depends on the right offset
@@ -73,6 +199,8 @@ final class Branch extends TrieNode {
       }
     } else {
       nu = used;
+      // the only child doesn't depend on the offset any more
+      if(Integer.bitCount(nu) == 1 && !(nsub instanceof Branch)) return nsub;
     }
 
     final TrieNode[] ks = copyKids();
@@ -80,6 +208,121 @@ final class Branch extends TrieNode {
     return new Branch(ks, nu, size - 1);
   }
 
+  @Override
+  TrieNode deleteAll(final int[] hs, final Object[] ks, final int from, final int to,
+      final int l) {
+    TrieNode[] ch = null;
+    int nu = used, ns = size;
+    int i = from;
+    while(i < to) {
+      final int key = key(hs[i], l);
+      int j = i + 1;
+      while(j < to && key(hs[j], l) == key) {
+        j++;
+      }
+      final TrieNode sub = kids[key];
+      if(sub != null) {
+        final TrieNode nsub = sub.deleteAll(hs, ks, i, j, l + 1);
+        if(nsub != sub) {
+          if(ch == null) {
+            ch = copyKids();
+          }
+          ch[key] = nsub;
+          if(nsub == null) {
+            nu ^= 1 << key;
+            ns -= sub.size;
+          } else {
+            ns -= sub.size - nsub.size;
+          }
+        }
+      }
+      i = j;
+    }
+    return ch == null ? this : shrink(ch, nu, ns);
+  }
+
+  @Override
+  TrieNode deleteIf(final BiPredicate<Object, Object> pred) {
+    TrieNode[] ch = null;
+    int nu = used, ns = size;
+    for(int i = 0; i < KIDS; i++) {
+      final TrieNode sub = kids[i];
+      if(sub != null) {
+        final TrieNode nsub = sub.deleteIf(pred);
+        if(nsub != sub) {
+          if(ch == null) {
+            ch = copyKids();
+          }
+          ch[i] = nsub;
+          if(nsub == null) {
+            nu ^= 1 << i;
+            ns -= sub.size;
+          } else {
+            ns -= sub.size - nsub.size;
+          }
+        }
+      }
+    }
+    return ch == null ? this : shrink(ch, nu, ns);
+  }
+
+  @Override
+  TrieNode mapValues(final Function<Object, Object> fun) {
+    TrieNode[] ch = null;
+    for(int i = 0; i < KIDS; i++) {
+      final TrieNode sub = kids[i];
+      if(sub != null) {
+        final TrieNode nsub = sub.mapValues(fun);
+        if(nsub != sub) {
+          if(ch == null) {
+            ch = copyKids();
+          }
+          ch[i] = nsub;
+        }
+      }
+    }
+    return ch == null ? this : new Branch(ch, used, size);
+  }
+
+  @Override
+  void forEach(final BiConsumer<Object, Object> action) {
+    for(final TrieNode sub : kids) {
+      if(sub != null) {
+        sub.forEach(action);
+      }
+    }
+  }
+
+  @Override
+  Object fold(final Object acc, final Accumulator<Object, Object, Object> fun) {
+    Object res = acc;
+    for(final TrieNode sub : kids) {
+      if(sub != null) {
+        res = sub.fold(res, fun);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Creates a branch from children of which some may have been deleted. As in
+   * {@link #delete(int, Object, int)}, a single remaining child that doesn't depend
+   * on its offset replaces the branch.
+   * @param ch children
+   * @param u bit array
+   * @param s size of the new node
+   * @return the new node, {@code null} if no children are left
+   */
+  private static TrieNode shrink(final TrieNode[] ch, final int u, final int s) {
+    if(u == 0) return null;
+    if(Integer.bitCount(u) == 1) {
+      final TrieNode single = ch[Integer.numberOfTrailingZeros(u)];
+      // check whether the child depends on the right offset
+      if(!(single instanceof Branch)) return single;
+    }
+    return new Branch(ch, u, s);
+  }
+
   @Override
   Object get(final int h, final Object k, final int l) {
     final int key = key(h, l);
@@ -201,6 +444,69 @@ final class Branch extends TrieNode {
     return ch == null ? this : new Branch(ch, nu, ns);
   }
 
+  /**
+   * Merges the changes from a common base trie to this branch and another one.
+   * @param base common base trie at the same level
+   * @param right right branch
+   * @param lvl level
+   * @param res resolver for keys changed differently on both sides
+   * @return merged trie, {@code EMPTY} if no bindings are left
+   */
+  TrieNode merge3(final TrieNode base, final Branch right, final int lvl,
+      final ImmutableMap.Resolver<Object, Object> res) {
+    final TrieNode[] bk = base instanceof Branch ? ((Branch) base).kids : null;
+    final int bs = bk != null || base.size == 0 ? -1
+        : key(base instanceof Leaf ? ((Leaf) base).hash : ((List) base).hash, lvl);
+    final TrieNode[] ch = new TrieNode[KIDS];
+    int u = 0, s = 0;
+    boolean same = true;
+    for(int i = 0; i < KIDS; i++) {
+      final TrieNode b = bk != null ? bk[i] : i == bs ? base : null;
+      final TrieNode l = kids[i], r = right.kids[i];
+      final TrieNode m = merge3(b == null ? EMPTY : b, l == null ? EMPTY : l,
+          r == null ? EMPTY : r, lvl + 1, res);
+      if(m.size != 0) {
+        ch[i] = m;
+        u |= 1 << i;
+        s += m.size;
+      }
+      same &= ch[i] == l;
+    }
+    if(same) return this;
+    if(u == 0) return EMPTY;
+    if(Integer.bitCount(u) == 1) {
+      final TrieNode single = ch[Integer.numberOfTrailingZeros(u)];
+      // level-independent nodes don't need a branch
+      if(!(single instanceof Branch)) return single;
+    }
+    return new Branch(ch, u, s);
+  }
+
+  /**
+   * Reports the changes between the given branch and this one.
+   * @param old old branch at the same level
+   * @param lvl level
+   * @param action consumer of the changes
+   */
+  void diff(final Branch old, final int lvl, final Consumer<MapChange<Object, Object>> action) {
+    for(int i = 0; i < KIDS; i++) {
+      final TrieNode o = old.kids[i], n = kids[i];
+      if(o != n) diff(o == null ? EMPTY : o, n == null ? EMPTY : n, lvl + 1, action);
+    }
+  }
+
+  @Override
+  long bytes(final TrieNode old) {
+    if(old == this) return 0;
+    final TrieNode[] ok = old instanceof Branch ? ((Branch) old).kids : null;
+    // object header and fields plus the array of children
+    long b = 24 + 16 + 4 * KIDS;
+    for(int i = 0; i < KIDS; i++) {
+      if(kids[i] != null) b += kids[i].bytes(ok == null ? null : ok[i]);
+    }
+    return b;
+  }
+
   @Override
   boolean verify() {
     int c = 0;
@@ -0,0 +1,287 @@
+package de.woerteler.persistent.map;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+/**
+ * A persistent map root that publishes the changes of every commit to its subscribers.
+ * The changes are computed once per commit by {@link ImmutableMap#diff(ImmutableMap,
+ * java.util.function.Consumer)}, which skips all subtrees shared by the old and the
+ * new version, and are delivered as one {@link Batch} to the bounded queue of every
+ * subscriber. If a queue is full, the commit waits until the subscriber catches up,
+ * so slow subscribers slow down writers instead of buffering without bound. A commit
+ * only becomes visible once there is room for its batch in every queue, so a writer
+ * interrupted while waiting leaves the feed unchanged. Readers of the current map are
+ * never blocked.
+ *
+ * @author Leo Woerteler
+ * @param <K> key type
+ * @param <V> value type
+ */
+public final class ChangeFeed<K, V> {
+  /** Subscriptions. */
+  private final CopyOnWriteArrayList<Subscription<K, V>> subs =
+      new CopyOnWriteArrayList<Subscription<K, V>>();
+  /** Current map. */
+  private volatile ImmutableMap<K, V> current;
+  /** Number of the current version. */
+  private volatile long version;
+
+  /** Constructor for an empty initial map. */
+  public ChangeFeed() {
+    this(ImmutableMap.<K, V>empty());
+  }
+
+  /**
+   * Constructor.
+   * @param init initial map
+   */
+  public ChangeFeed(final ImmutableMap<K, V> init) {
+    current = init;
+  }
+
+  /**
+   * Returns the current map.
+   * @return current map
+   */
+  public ImmutableMap<K, V> get() {
+    return current;
+  }
+
+  /**
+   * Returns the number of the current version, which is incremented by every commit
+   * that changed the map.
+   * @return version number
+   */
+  public long version() {
+    return version;
+  }
+
+  /**
+   * Subscribes to the changes of all following commits.
+   * @param capacity maximum number of batches waiting in the queue of the subscriber
+   * @return subscription
+   */
+  public synchronized Subscription<K, V> subscribe(final int capacity) {
+    if(capacity < 1) throw new IllegalArgumentException("Capacity: " + capacity);
+    final Subscription<K, V> sub = new Subscription<K, V>(this, capacity, version);
+    subs.add(sub);
+    return sub;
+  }
+
+  /**
+   * Replaces the current map and publishes the changes. Nothing is published if the
+   * new map is identical to the current one.
+   * @param map new map
+   * @return number of the new version
+   * @throws InterruptedException if interrupted while waiting for a full queue, the
+   *   map is not replaced then
+   */
+  public synchronized long publish(final ImmutableMap<K, V> map)
+      throws InterruptedException {
+    final ImmutableMap<K, V> old = current;
+    if(map == old) return version;
+    final long v = version + 1;
+    if(!subs.isEmpty()) {
+      final ArrayList<MapChange<K, V>> changes = new ArrayList<MapChange<K, V>>();
+      map.diff(old, changes::add);
+      if(!changes.isEmpty()) {
+        final Batch<K, V> batch = new Batch<K, V>(v, map, changes);
+        // reserve room in all queues before anything is delivered or visible
+        final ArrayList<Subscription<K, V>> reserved = new ArrayList<Subscription<K, V>>();
+        try {
+          for(final Subscription<K, V> sub : subs) {
+            sub.space.acquire();
+            reserved.add(sub);
+          }
+        } catch(final InterruptedException ex) {
+          for(final Subscription<K, V> sub : reserved) {
+            sub.space.release();
+          }
+          throw ex;
+        }
+        for(final Subscription<K, V> sub : reserved) {
+          if(!sub.closed) sub.queue.offer(batch);
+        }
+      }
+    }
+    current = map;
+    version = v;
+    return v;
+  }
+
+  /**
+   * Applies the given function to the current map and publishes the changes.
+   * @param fun update function
+   * @return the new map
+   * @throws InterruptedException if interrupted while waiting for a full queue, the
+   *   map is not replaced then
+   */
+  public synchronized ImmutableMap<K, V> update(final UnaryOperator<ImmutableMap<K, V>> fun)
+      throws InterruptedException {
+    final ImmutableMap<K, V> map = fun.apply(current);
+    publish(map);
+    return map;
+  }
+
+  /**
+   * The changes of one commit.
+   *
+   * @author Leo Woerteler
+   * @param <K> key type
+   * @param <V> value type
+   */
+  public static final class Batch<K, V> {
+    /** Version created by the commit. */
+    private final long version;
+    /** Map after the commit. */
+    private final ImmutableMap<K, V> map;
+    /** Changes of the commit. */
+    private final List<MapChange<K, V>> changes;
+
+    /**
+     * Constructor.
+     * @param version version created by the commit
+     * @param map map after the commit
+     * @param changes changes
+     */
+    Batch(final long version, final ImmutableMap<K, V> map,
+        final List<MapChange<K, V>> changes) {
+      this.version = version;
+      this.map = map;
+      this.changes = Collections.unmodifiableList(changes);
+    }
+
+    /**
+     * Returns the number of the version created by the commit.
+     * @return version number
+     */
+    public long version() {
+      return version;
+    }
+
+    /**
+     * Returns the map after the commit.
+     * @return map
+     */
+    public ImmutableMap<K, V> map() {
+      return map;
+    }
+
+    /**
+     * Returns the changes of the commit in no particular order.
+     * @return unmodifiable list of changes
+     */
+    public List<MapChange<K, V>> changes() {
+      return changes;
+    }
+
+    @Override
+    public String toString() {
+      return getClass().getSimpleName() + '[' + version + ": " + changes + ']';
+    }
+  }
+
+  /**
+   * Subscription to a change feed with a bounded queue of batches.
+   *
+   * @author Leo Woerteler
+   * @param <K> key type
+   * @param <V> value type
+   */
+  public static final class Subscription<K, V> {
+    /** The feed. */
+    private final ChangeFeed<K, V> feed;
+    /** Pending batches, bounded by {@link #space}. */
+    final BlockingQueue<Batch<K, V>> queue = new LinkedBlockingQueue<Batch<K, V>>();
+    /** Free places in the queue, reserved by writers before delivering a batch. */
+    final Semaphore space;
+    /** Flag for a closed subscription. */
+    volatile boolean closed;
+    /** Version of the feed when subscribed. */
+    private final long start;
+
+    /**
+     * Constructor.
+     * @param feed the feed
+     * @param capacity capacity of the queue
+     * @param start version of the feed when subscribed
+     */
+    Subscription(final ChangeFeed<K, V> feed, final int capacity, final long start) {
+      this.feed = feed;
+      this.start = start;
+      space = new Semaphore(capacity);
+    }
+
+    /**
+     * Returns the version of the feed when this subscription was created. Batches of
+     * all later versions that changed bindings are delivered.
+     * @return version number
+     */
+    public long startVersion() {
+      return start;
+    }
+
+    /**
+     * Returns the next batch, waiting if none is available.
+     * @return next batch
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Batch<K, V> take() throws InterruptedException {
+      final Batch<K, V> batch = queue.take();
+      space.release();
+      return batch;
+    }
+
+    /**
+     * Returns the next batch, waiting at most the given time.
+     * @param timeout maximum time to wait
+     * @param unit unit of the time
+     * @return next batch, {@code null} if none is available
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Batch<K, V> poll(final long timeout, final TimeUnit unit)
+        throws InterruptedException {
+      final Batch<K, V> batch = queue.poll(timeout, unit);
+      if(batch != null) space.release();
+      return batch;
+    }
+
+    /**
+     * Moves the available batches to the given collection without waiting.
+     * @param target target collection
+     * @param max maximum number of batches
+     * @return number of moved batches
+     */
+    public int drainTo(final Collection<? super Batch<K, V>> target, final int max) {
+      final int n = queue.drainTo(target, max);
+      space.release(n);
+      return n;
+    }
+
+    /**
+     * Returns the number of pending batches.
+     * @return number of batches
+     */
+    public int pending() {
+      return queue.size();
+    }
+
+    /** Ends this subscription, discarding pending batches and releasing writers. */
+    public void close() {
+      closed = true;
+      feed.subs.remove(this);
+      queue.clear();
+      // releases a writer waiting for room in this queue
+      space.release();
+    }
+  }
+}
@@ -0,0 +1,880 @@
+package de.woerteler.persistent.map;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
+
+import de.woerteler.persistent.PersistentSequence;
+
+/**
+ * A lock-free concurrent hash trie (Ctrie) with constant-time snapshots, following
+ * Prokopec et al., <i>Concurrent Tries with Efficient Non-Blocking Snapshots</i>.
+ * The trie has the same shape as an {@link ImmutableMap}: it branches on
+ * {@value ImmutableMap#BITS} bits of the hash code per level, lowest bits first,
+ * bindings are stored in {@link Leaf} nodes and full hash collisions in
+ * {@link List} nodes. Between the levels, mutable indirection nodes are updated with
+ * a generation-aware compare-and-set, so a snapshot only has to switch to a new
+ * generation and copies the nodes lazily.
+ *
+ * @author Leo Woerteler
+ * @param <K> key type
+ * @param <V> value type
+ */
+public final class ConcurrentTrieMap<K, V> {
+  /** Result of an operation that has to be restarted from the root. */
+  private static final Object RESTART = new Object();
+  /** Result of an operation that didn't find the key. */
+  private static final Object NOT_FOUND = new Object();
+  /** Number of levels with branches, the collision lists are on the level below. */
+  private static final int LEVELS = (Integer.SIZE + ImmutableMap.BITS - 1) / ImmutableMap.BITS;
+
+  /** Root indirection node, or a {@link Descriptor} while a snapshot is taken. */
+  private final AtomicReference<Object> root;
+  /** Read-only flag. */
+  private final boolean readOnly;
+
+  /** Constructor for an empty map. */
+  public ConcurrentTrieMap() {
+    this(new INode(CNode.EMPTY, new Gen()), false);
+  }
+
+  /**
+   * Constructor.
+   * @param r root node
+   * @param ro read-only flag
+   */
+  private ConcurrentTrieMap(final INode r, final boolean ro) {
+    root = new AtomicReference<Object>(r);
+    readOnly = ro;
+  }
+
+  /**
+   * Hash code of a key.
+   * @param key key
+   * @return hash code
+   */
+  private static int hash(final Object key) {
+    return key == null ? 0 : key.hashCode();
+  }
+
+  /**
+   * Gets the value bound to the given key.
+   * @param key key to look for
+   * @return bound value, {@code null} if not found
+   */
+  @SuppressWarnings("unchecked")
+  public V get(final K key) {
+    final Object res = lookup(key);
+    return res == NOT_FOUND ? null : (V) res;
+  }
+
+  /**
+   * Checks if the given key exists in the map.
+   * @param key key to look for
+   * @return {@code true}, if the key exists, {@code false} otherwise
+   */
+  public boolean containsKey(final K key) {
+    return lookup(key) != NOT_FOUND;
+  }
+
+  /**
+   * Binds the given key to the given value.
+   * @param key key to insert
+   * @param value value to insert
+   * @return the previously bound value, {@code null} if the key was absent
+   */
+  @SuppressWarnings("unchecked")
+  public V put(final K key, final V value) {
+    if(readOnly) throw new UnsupportedOperationException("Read-only snapshot");
+    final int h = hash(key);
+    for(;;) {
+      final INode r = readRoot(false);
+      final Object res = insert(r, h, key, value, 0, null, r.gen);
+      if(res != RESTART) return res == NOT_FOUND ? null : (V) res;
+    }
+  }
+
+  /**
+   * Deletes a key from this map.
+   * @param key key to delete
+   * @return the previously bound value, {@code null} if the key was absent
+   */
+  @SuppressWarnings("unchecked")
+  public V remove(final K key) {
+    if(readOnly) throw new UnsupportedOperationException("Read-only snapshot");
+    final int h = hash(key);
+    for(;;) {
+      final INode r = readRoot(false);
+      final Object res = remove(r, h, key, 0, null, r.gen);
+      if(res != RESTART) return res == NOT_FOUND ? null : (V) res;
+    }
+  }
+
+  /**
+   * Returns a consistent read-only view of the current bindings in constant time.
+   * Lookups and traversals work on the trie directly, the other operations of
+   * the view convert it into an {@link ImmutableMap} once.
+   * @return snapshot
+   */
+  public PersistentMap<K, V> snapshot() {
+    return new Snapshot<K, V>(readOnlySnapshot());
+  }
+
+  /**
+   * Returns an independent mutable copy of this map in constant time.
+   * @return copy
+   */
+  public ConcurrentTrieMap<K, V> copy() {
+    if(readOnly) return new ConcurrentTrieMap<K, V>(
+        readRoot(false).copyToGen(new Gen(), this), false);
+    for(;;) {
+      final INode r = readRoot(false);
+      final MainNode exp = r.gcasRead(this);
+      if(rdcssRoot(r, exp, r.copyToGen(new Gen(), this)))
+        return new ConcurrentTrieMap<K, V>(r.copyToGen(new Gen(), this), false);
+    }
+  }
+
+  /**
+   * Returns a read-only trie with the current bindings.
+   * @return read-only trie
+   */
+  private ConcurrentTrieMap<K, V> readOnlySnapshot() {
+    if(readOnly) return this;
+    for(;;) {
+      final INode r = readRoot(false);
+      final MainNode exp = r.gcasRead(this);
+      if(rdcssRoot(r, exp, r.copyToGen(new Gen(), this)))
+        return new ConcurrentTrieMap<K, V>(r, true);
+    }
+  }
+
+  /**
+   * Returns the current bindings as an immutable map.
+   * @return immutable map
+   */
+  public ImmutableMap<K, V> toImmutableMap() {
+    final ImmutableMap.Builder<K, V> builder = new ImmutableMap.Builder<K, V>();
+    forEach(builder::put);
+    return builder.build();
+  }
+
+  /**
+   * Calls the given action for every binding of a consistent snapshot, in an arbitrary
+   * order.
+   * @param action action taking the key and the value of a binding
+   */
+  @SuppressWarnings("unchecked")
+  public void forEach(final BiConsumer<? super K, ? super V> action) {
+    final ConcurrentTrieMap<K, V> snap = readOnlySnapshot();
+    snap.traverse(snap.readRoot(false), (BiConsumer<Object, Object>) action);
+  }
+
+  /**
+   * Returns the number of bindings of a consistent snapshot. This traverses the whole
+   * trie.
+   * @return number of bindings
+   */
+  public int size() {
+    final int[] size = { 0 };
+    forEach((k, v) -> size[0]++);
+    return size[0];
+  }
+
+  @Override
+  public String toString() {
+    return toImmutableMap().toString();
+  }
+
+  /**
+   * Calls the given action for every binding below the given node.
+   * @param in indirection node
+   * @param action action
+   */
+  private void traverse(final INode in, final BiConsumer<Object, Object> action) {
+    final MainNode m = in.gcasRead(this);
+    if(m instanceof CNode) {
+      for(final Object sub : ((CNode) m).array) {
+        if(sub instanceof INode) {
+          traverse((INode) sub, action);
+        } else {
+          ((Leaf) sub).forEach(action);
+        }
+      }
+    } else if(m instanceof TNode) {
+      ((TNode) m).leaf.forEach(action);
+    } else {
+      ((LNode) m).list.forEach(action);
+    }
+  }
+
+  /**
+   * Looks up a key, restarting from the root if necessary.
+   * @param key key
+   * @return bound value or {@link #NOT_FOUND}
+   */
+  private Object lookup(final Object key) {
+    final int h = hash(key);
+    for(;;) {
+      final INode r = readRoot(false);
+      final Object res = lookup(r, h, key, 0, null, r.gen);
+      if(res != RESTART) return res;
+    }
+  }
+
+  /**
+   * Looks up a key below the given node.
+   * @param i indirection node
+   * @param h hash code of the key
+   * @param k key
+   * @param lev level of {@code i}
+   * @param parent parent of {@code i}
+   * @param startgen generation of the root
+   * @return bound value, {@link #NOT_FOUND} or {@link #RESTART}
+   */
+  private Object lookup(final INode i, final int h, final Object k, final int lev,
+      final INode parent, final Gen startgen) {
+    final MainNode m = i.gcasRead(this);
+    if(m instanceof CNode) {
+      final CNode cn = (CNode) m;
+      final int flag = 1 << TrieNode.key(h, lev);
+      if((cn.bitmap & flag) == 0) return NOT_FOUND;
+      final int pos = Integer.bitCount(cn.bitmap & flag - 1);
+      final Object sub = cn.array[pos];
+      if(sub instanceof INode) {
+        final INode in = (INode) sub;
+        if(readOnly || startgen == in.gen) return lookup(in, h, k, lev + 1, i, startgen);
+        if(i.gcas(cn, cn.renewed(startgen, this), this))
+          return lookup(i, h, k, lev, parent, startgen);
+        return RESTART;
+      }
+      return find((Leaf) sub, h, k);
+    }
+    if(m instanceof TNode) {
+      if(readOnly) return find(((TNode) m).leaf, h, k);
+      clean(parent, lev - 1);
+      return RESTART;
+    }
+    final List list = ((LNode) m).list;
+    return list.contains(h, k, 0) ? list.get(h, k, 0) : NOT_FOUND;
+  }
+
+  /**
+   * Returns the value of the given leaf if it has the given key.
+   * @param leaf leaf
+   * @param h hash code of the key
+   * @param k key
+   * @return value or {@link #NOT_FOUND}
+   */
+  private static Object find(final Leaf leaf, final int h, final Object k) {
+    return leaf.hash == h && TrieNode.equal(leaf.key, k) ? leaf.value : NOT_FOUND;
+  }
+
+  /**
+   * Inserts a binding below the given node.
+   * @param i indirection node
+   * @param h hash code of the key
+   * @param k key
+   * @param v value
+   * @param lev level of {@code i}
+   * @param parent parent of {@code i}
+   * @param startgen generation of the root
+   * @return previous value, {@link #NOT_FOUND} or {@link #RESTART}
+   */
+  private Object insert(final INode i, final int h, final Object k, final Object v,
+      final int lev, final INode parent, final Gen startgen) {
+    final MainNode m = i.gcasRead(this);
+    if(m instanceof CNode) {
+      final CNode cn = (CNode) m;
+      final int flag = 1 << TrieNode.key(h, lev), pos = Integer.bitCount(cn.bitmap & flag - 1);
+      if((cn.bitmap & flag) == 0) {
+        final CNode rn = cn.gen == i.gen ? cn : cn.renewed(i.gen, this);
+        return i.gcas(cn, rn.insertedAt(pos, flag, new Leaf(h, k, v), i.gen), this)
+            ? NOT_FOUND : RESTART;
+      }
+      final Object sub = cn.array[pos];
+      if(sub instanceof INode) {
+        final INode in = (INode) sub;
+        if(startgen == in.gen) return insert(in, h, k, v, lev + 1, i, startgen);
+        if(i.gcas(cn, cn.renewed(startgen, this), this))
+          return insert(i, h, k, v, lev, parent, startgen);
+        return RESTART;
+      }
+      final Leaf sn = (Leaf) sub;
+      if(sn.hash == h && TrieNode.equal(sn.key, k))
+        return i.gcas(cn, cn.updatedAt(pos, new Leaf(h, k, v), i.gen), this)
+            ? sn.value : RESTART;
+      final CNode rn = cn.gen == i.gen ? cn : cn.renewed(i.gen, this);
+      final INode nin = new INode(dual(sn, new Leaf(h, k, v), lev + 1, i.gen), i.gen);
+      return i.gcas(cn, rn.updatedAt(pos, nin, i.gen), this) ? NOT_FOUND : RESTART;
+    }
+    if(m instanceof TNode) {
+      clean(parent, lev - 1);
+      return RESTART;
+    }
+    final List list = ((LNode) m).list;
+    final Object old = list.contains(h, k, 0) ? list.get(h, k, 0) : NOT_FOUND;
+    return i.gcas(m, new LNode((List) list.insert(h, k, v, 0)), this) ? old : RESTART;
+  }
+
+  /**
+   * Creates the node containing two leaves with different keys.
+   * @param x first leaf
+   * @param y second leaf
+   * @param lev level of the node
+   * @param gen generation
+   * @return the node
+   */
+  private static MainNode dual(final Leaf x, final Leaf y, final int lev, final Gen gen) {
+    if(lev == LEVELS) return new LNode(new List(x.hash, x.key, x.value, y.key, y.value));
+    final int xi = TrieNode.key(x.hash, lev), yi = TrieNode.key(y.hash, lev);
+    final int bmp = 1 << xi | 1 << yi;
+    if(xi == yi) return new CNode(bmp, new Object[] {
+        new INode(dual(x, y, lev + 1, gen), gen) }, gen);
+    return new CNode(bmp, xi < yi ? new Object[] { x, y } : new Object[] { y, x }, gen);
+  }
+
+  /**
+   * Deletes a key below the given node.
+   * @param i indirection node
+   * @param h hash code of the key
+   * @param k key
+   * @param lev level of {@code i}
+   * @param parent parent of {@code i}
+   * @param startgen generation of the root
+   * @return previous value, {@link #NOT_FOUND} or {@link #RESTART}
+   */
+  private Object remove(final INode i, final int h, final Object k, final int lev,
+      final INode parent, final Gen startgen) {
+    final MainNode m = i.gcasRead(this);
+    if(m instanceof CNode) {
+      final CNode cn = (CNode) m;
+      final int flag = 1 << TrieNode.key(h, lev);
+      if((cn.bitmap & flag) == 0) return NOT_FOUND;
+      final int pos = Integer.bitCount(cn.bitmap & flag - 1);
+      final Object sub = cn.array[pos];
+      final Object res;
+      if(sub instanceof INode) {
+        final INode in = (INode) sub;
+        if(startgen == in.gen) {
+          res = remove(in, h, k, lev + 1, i, startgen);
+        } else if(i.gcas(cn, cn.renewed(startgen, this), this)) {
+          res = remove(i, h, k, lev, parent, startgen);
+        } else {
+          res = RESTART;
+        }
+      } else {
+        final Leaf sn = (Leaf) sub;
+        if(sn.hash != h || !TrieNode.equal(sn.key, k)) return NOT_FOUND;
+        final MainNode ncn = cn.removedAt(pos, flag, i.gen).toContracted(lev);
+        res = i.gcas(cn, ncn, this) ? sn.value : RESTART;
+      }
+      if(res != NOT_FOUND && res != RESTART && parent != null) {
+        final MainNode n = i.gcasRead(this);
+        if(n instanceof TNode) {
+          cleanParent((TNode) n, i, parent, h, lev, startgen);
+        }
+      }
+      return res;
+    }
+    if(m instanceof TNode) {
+      clean(parent, lev - 1);
+      return RESTART;
+    }
+    final List list = ((LNode) m).list;
+    if(!list.contains(h, k, 0)) return NOT_FOUND;
+    final Object old = list.get(h, k, 0);
+    final TrieNode rest = list.delete(h, k, 0);
+    final MainNode nn = rest instanceof Leaf ? new TNode((Leaf) rest) : new LNode((List) rest);
+    return i.gcas(m, nn, this) ? old : RESTART;
+  }
+
+  /**
+   * Compresses the branch of the given node, removing tombs below it.
+   * @param nd indirection node
+   * @param lev level of {@code nd}
+   */
+  private void clean(final INode nd, final int lev) {
+    final MainNode m = nd.gcasRead(this);
+    if(m instanceof CNode) {
+      nd.gcas(m, ((CNode) m).toCompressed(this, lev, nd.gen), this);
+    }
+  }
+
+  /**
+   * Replaces an indirection node containing a tomb by the entombed leaf in its parent.
+   * @param tomb the tomb
+   * @param i indirection node containing the tomb
+   * @param parent parent of {@code i}
+   * @param h hash code of the deleted key
+   * @param lev level of {@code i}
+   * @param startgen generation of the root
+   */
+  private void cleanParent(final TNode tomb, final INode i, final INode parent, final int h,
+      final int lev, final Gen startgen) {
+    for(;;) {
+      final MainNode pm = parent.gcasRead(this);
+      if(!(pm instanceof CNode)) return;
+      final CNode cn = (CNode) pm;
+      final int flag = 1 << TrieNode.key(h, lev - 1);
+      if((cn.bitmap & flag) == 0) return;
+      final int pos = Integer.bitCount(cn.bitmap & flag - 1);
+      if(cn.array[pos] != i) return;
+      final MainNode ncn = cn.updatedAt(pos, tomb.leaf, i.gen).toContracted(lev - 1);
+      if(parent.gcas(cn, ncn, this) || readRoot(false).gen != startgen) return;
+    }
+  }
+
+  /**
+   * Reads the root node, completing or aborting a pending snapshot.
+   * @param abort abort a pending snapshot
+   * @return root node
+   */
+  INode readRoot(final boolean abort) {
+    final Object r = root.get();
+    return r instanceof INode ? (INode) r : rdcssComplete(abort);
+  }
+
+  /**
+   * Replaces the root node if its main node is still the expected one.
+   * @param ov old root
+   * @param exp expected main node of the old root
+   * @param nv new root
+   * @return {@code true} if the root was replaced
+   */
+  private boolean rdcssRoot(final INode ov, final MainNode exp, final INode nv) {
+    final Descriptor desc = new Descriptor(ov, exp, nv);
+    if(!root.compareAndSet(ov, desc)) return false;
+    rdcssComplete(false);
+    return desc.committed;
+  }
+
+  /**
+   * Completes or aborts a pending replacement of the root.
+   * @param abort abort the replacement
+   * @return current root
+   */
+  private INode rdcssComplete(final boolean abort) {
+    for(;;) {
+      final Object v = root.get();
+      if(v instanceof INode) return (INode) v;
+      final Descriptor desc = (Descriptor) v;
+      if(abort) {
+        if(root.compareAndSet(desc, desc.ov)) return desc.ov;
+      } else if(desc.ov.gcasRead(this) == desc.exp) {
+        if(root.compareAndSet(desc, desc.nv)) {
+          desc.committed = true;
+          return desc.nv;
+        }
+      } else if(root.compareAndSet(desc, desc.ov)) {
+        return desc.ov;
+      }
+    }
+  }
+
+  /**
+   * Generation of indirection nodes, compared by identity.
+   *
+   * @author Leo Woerteler
+   */
+  private static final class Gen { }
+
+  /**
+   * Pending replacement of the root node.
+   *
+   * @author Leo Woerteler
+   */
+  private static final class Descriptor {
+    /** Old root. */
+    final INode ov;
+    /** Expected main node of the old root. */
+    final MainNode exp;
+    /** New root. */
+    final INode nv;
+    /** Flag for a successful replacement. */
+    volatile boolean committed;
+
+    /**
+     * Constructor.
+     * @param ov old root
+     * @param exp expected main node of the old root
+     * @param nv new root
+     */
+    Descriptor(final INode ov, final MainNode exp, final INode nv) {
+      this.ov = ov;
+      this.exp = exp;
+      this.nv = nv;
+    }
+  }
+
+  /**
+   * Indirection node, the only mutable node of the trie.
+   *
+   * @author Leo Woerteler
+   */
+  private static final class INode {
+    /** Updater for {@link #main}. */
+    private static final AtomicReferenceFieldUpdater<INode, MainNode> MAIN =
+        AtomicReferenceFieldUpdater.newUpdater(INode.class, MainNode.class, "main");
+
+    /** Current main node. */
+    volatile MainNode main;
+    /** Generation. */
+    final Gen gen;
+
+    /**
+     * Constructor.
+     * @param m main node
+     * @param g generation
+     */
+    INode(final MainNode m, final Gen g) {
+      main = m;
+      gen = g;
+    }
+
+    /**
+     * Reads the main node, completing a pending update.
+     * @param ct trie
+     * @return main node
+     */
+    MainNode gcasRead(final ConcurrentTrieMap<?, ?> ct) {
+      final MainNode m = main;
+      return m.prev == null ? m : gcasComplete(m, ct);
+    }
+
+    /**
+     * Replaces the main node if it is still the expected one and the generation of
+     * the root didn't change in between.
+     * @param old expected main node
+     * @param n new main node
+     * @param ct trie
+     * @return {@code true} if the main node was replaced
+     */
+    boolean gcas(final MainNode old, final MainNode n, final ConcurrentTrieMap<?, ?> ct) {
+      n.prev = old;
+      if(!MAIN.compareAndSet(this, old, n)) return false;
+      gcasComplete(n, ct);
+      return n.prev == null;
+    }
+
+    /**
+     * Commits or rolls back a pending update.
+     * @param start main node to start with
+     * @param ct trie
+     * @return committed main node
+     */
+    private MainNode gcasComplete(final MainNode start, final ConcurrentTrieMap<?, ?> ct) {
+      MainNode m = start;
+      for(;;) {
+        final MainNode prev = m.prev;
+        final INode ctr = ct.readRoot(true);
+        if(prev == null) return m;
+        if(prev instanceof Failed) {
+          // roll back to the previous main node
+          final MainNode p = prev.prev;
+          if(MAIN.compareAndSet(this, m, p)) return p;
+          m = main;
+        } else if(ctr.gen == gen && !ct.readOnly) {
+          if(m.casPrev(prev, null)) return m;
+        } else {
+          m.casPrev(prev, new Failed(prev));
+          m = main;
+        }
+      }
+    }
+
+    /**
+     * Copies this node into another generation.
+     * @param ngen new generation
+     * @param ct trie
+     * @return copy
+     */
+    INode copyToGen(final Gen ngen, final ConcurrentTrieMap<?, ?> ct) {
+      return new INode(gcasRead(ct), ngen);
+    }
+  }
+
+  /**
+   * Node referenced by an indirection node.
+   *
+   * @author Leo Woerteler
+   */
+  private abstract static class MainNode {
+    /** Updater for {@link #prev}. */
+    private static final AtomicReferenceFieldUpdater<MainNode, MainNode> PREV =
+        AtomicReferenceFieldUpdater.newUpdater(MainNode.class, MainNode.class, "prev");
+
+    /** Previous main node while an update is pending, {@code null} otherwise. */
+    volatile MainNode prev;
+
+    /**
+     * Changes the previous node.
+     * @param old expected previous node
+     * @param n new previous node
+     * @return success flag
+     */
+    final boolean casPrev(final MainNode old, final MainNode n) {
+      return PREV.compareAndSet(this, old, n);
+    }
+  }
+
+  /**
+   * Marker for a failed update.
+   *
+   * @author Leo Woerteler
+   */
+  private static final class Failed extends MainNode {
+    /**
+     * Constructor.
+     * @param p main node to roll back to
+     */
+    Failed(final MainNode p) {
+      prev = p;
+    }
+  }
+
+  /**
+   * Tomb of an indirection node with a single remaining leaf, which is moved into the
+   * parent by the next operation passing by.
+   *
+   * @author Leo Woerteler
+   */
+  private static final class TNode extends MainNode {
+    /** Remaining leaf. */
+    final Leaf leaf;
+
+    /**
+     * Constructor.
+     * @param l remaining leaf
+     */
+    TNode(final Leaf l) {
+      leaf = l;
+    }
+  }
+
+  /**
+   * Collision list on the lowest level.
+   *
+   * @author Leo Woerteler
+   */
+  private static final class LNode extends MainNode {
+    /** Bindings. */
+    final List list;
+
+    /**
+     * Constructor.
+     * @param l bindings
+     */
+    LNode(final List l) {
+      list = l;
+    }
+  }
+
+  /**
+   * Branch node with a compressed array of indirection nodes and leaves.
+   *
+   * @author Leo Woerteler
+   */
+  private static final class CNode extends MainNode {
+    /** Empty root node. */
+    static final CNode EMPTY = new CNode(0, new Object[0], null);
+
+    /** Bit array with a bit set for every used slot. */
+    final int bitmap;
+    /** Children, {@link INode}s and {@link Leaf}s. */
+    final Object[] array;
+    /** Generation. */
+    final Gen gen;
+
+    /**
+     * Constructor.
+     * @param bmp bit array
+     * @param arr children
+     * @param g generation
+     */
+    CNode(final int bmp, final Object[] arr, final Gen g) {
+      bitmap = bmp;
+      array = arr;
+      gen = g;
+    }
+
+    /**
+     * Replaces a child.
+     * @param pos position
+     * @param nn new child
+     * @param g generation
+     * @return new node
+     */
+    CNode updatedAt(final int pos, final Object nn, final Gen g) {
+      final Object[] arr = array.clone();
+      arr[pos] = nn;
+      return new CNode(bitmap, arr, g);
+    }
+
+    /**
+     * Removes a child.
+     * @param pos position
+     * @param flag bit of the child
+     * @param g generation
+     * @return new node
+     */
+    CNode removedAt(final int pos, final int flag, final Gen g) {
+      final Object[] arr = new Object[array.length - 1];
+      System.arraycopy(array, 0, arr, 0, pos);
+      System.arraycopy(array, pos + 1, arr, pos, arr.length - pos);
+      return new CNode(bitmap ^ flag, arr, g);
+    }
+
+    /**
+     * Inserts a child.
+     * @param pos position
+     * @param flag bit of the child
+     * @param nn new child
+     * @param g generation
+     * @return new node
+     */
+    CNode insertedAt(final int pos, final int flag, final Object nn, final Gen g) {
+      final Object[] arr = new Object[array.length + 1];
+      System.arraycopy(array, 0, arr, 0, pos);
+      arr[pos] = nn;
+      System.arraycopy(array, pos, arr, pos + 1, array.length - pos);
+      return new CNode(bitmap | flag, arr, g);
+    }
+
+    /**
+     * Copies this node and its indirection nodes into another generation.
+     * @param ngen new generation
+     * @param ct trie
+     * @return copy
+     */
+    CNode renewed(final Gen ngen, final ConcurrentTrieMap<?, ?> ct) {
+      final Object[] arr = array.clone();
+      for(int i = 0; i < arr.length; i++) {
+        if(arr[i] instanceof INode) {
+          arr[i] = ((INode) arr[i]).copyToGen(ngen, ct);
+        }
+      }
+      return new CNode(bitmap, arr, ngen);
+    }
+
+    /**
+     * Replaces a node with a single leaf below the root by a tomb.
+     * @param lev level
+     * @return this node or a tomb
+     */
+    MainNode toContracted(final int lev) {
+      return array.length == 1 && lev > 0 && array[0] instanceof Leaf
+          ? new TNode((Leaf) array[0]) : this;
+    }
+
+    /**
+     * Moves the leaves of entombed children into this node.
+     * @param ct trie
+     * @param lev level
+     * @param g generation
+     * @return new node
+     */
+    MainNode toCompressed(final ConcurrentTrieMap<?, ?> ct, final int lev, final Gen g) {
+      final Object[] arr = array.clone();
+      for(int i = 0; i < arr.length; i++) {
+        if(arr[i] instanceof INode) {
+          final MainNode m = ((INode) arr[i]).gcasRead(ct);
+          if(m instanceof TNode) {
+            arr[i] = ((TNode) m).leaf;
+          }
+        }
+      }
+      return new CNode(bitmap, arr, g).toContracted(lev);
+    }
+  }
+
+  /**
+   * Read-only snapshot of a trie as a persistent map.
+   *
+   * @author Leo Woerteler
+   * @param <K> key type
+   * @param <V> value type
+   */
+  private static final class Snapshot<K, V> extends AbstractPersistentMap<K, V> {
+    /** Read-only trie. */
+    private final ConcurrentTrieMap<K, V> trie;
+    /** The trie as immutable map, created on demand. */
+    private volatile ImmutableMap<K, V> map;
+
+    /**
+     * Constructor.
+     * @param trie read-only trie
+     */
+    Snapshot(final ConcurrentTrieMap<K, V> trie) {
+      this.trie = trie;
+    }
+
+    /**
+     * Returns the trie as immutable map.
+     * @return immutable map
+     */
+    private ImmutableMap<K, V> map() {
+      ImmutableMap<K, V> m = map;
+      if(m == null) {
+        m = trie.toImmutableMap();
+        map = m;
+      }
+      return m;
+    }
+
+    @Override
+    public V get(final K key) {
+      return trie.get(key);
+    }
+
+    @Override
+    public boolean containsKey(final K key) {
+      return trie.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+      return map().size();
+    }
+
+    @Override
+    public ImmutableMap<K, V> put(final K key, final V value) {
+      return map().put(key, value);
+    }
+
+    @Override
+    public ImmutableMap<K, V> remove(final K key) {
+      return map().remove(key);
+    }
+
+    @Override
+    public void forEach(final BiConsumer<? super K, ? super V> action) {
+      trie.forEach(action);
+    }
+
+    @Override
+    public PersistentSequence<K> keySequence() {
+      return map().keySequence();
+    }
+
+    @Override
+    public PersistentSequence<V> valueSequence() {
+      return map().valueSequence();
+    }
+
+    @Override
+    public PersistentSequence<PersistentEntry<K, V>> entrySequence() {
+      return map().entrySequence();
+    }
+
+    @Override
+    public int hashCode() {
+      return map().hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return map().toString();
+    }
+  }
+}
@@ -1,15 +1,31 @@
 package de.woerteler.persistent.map;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import de.woerteler.persistent.FlatSequence;
 import de.woerteler.persistent.Persistent;
 import de.woerteler.persistent.PersistentSequence;
+import de.woerteler.persistent.Serializer;
 import de.woerteler.persistent.map.TrieNode.Pos;
 
 /**
@@ -37,6 +53,26 @@ public final class ImmutableMap<K, V> extends AbstractPersistentMap<K, V> {
     root = m;
   }
 
+  /**
+   * Wraps the given root node, e.g. the result of a structural update.
+   * @param <K> key type
+   * @param <V> value type
+   * @param root root node, {@code null} if everything was deleted
+   * @return map
+   */
+  static <K, V> ImmutableMap<K, V> wrap(final TrieNode root) {
+    return root == null || root.size == 0 ? ImmutableMap.<K, V>empty()
+        : new ImmutableMap<K, V>(root);
+  }
+
+  /**
+   * Returns the root node of this map.
+   * @return root node
+   */
+  TrieNode root() {
+    return root;
+  }
+
   /**
    * The generic empty map.
    * @param <K> key type
@@ -78,6 +114,166 @@ public final class ImmutableMap<K, V> extends AbstractPersistentMap<K, V> {
       del == null ? ImmutableMap.<K, V>empty() : new ImmutableMap<K, V>(del);
   }
 
+  @Override
+  public ImmutableMap<K, V> removeAll(final Iterable<? extends K> keys) {
+    if(root.size == 0) return this;
+    final ArrayList<Object> list = new ArrayList<Object>();
+    for(final K k : keys) {
+      list.add(k);
+    }
+    final int n = list.size();
+    if(n == 0) return this;
+    final Object[] ks = list.toArray();
+    final int[] hs = new int[n];
+    for(int i = 0; i < n; i++) {
+      hs[i] = ks[i] == null ? 0 : ks[i].hashCode();
+    }
+    // keys under the same child are adjacent, so every touched node is copied once
+    TrieNode.sort(hs, ks);
+    final TrieNode upd = root.deleteAll(hs, ks, 0, n, 0);
+    return upd == root ? this : ImmutableMap.<K, V>wrap(upd);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public ImmutableMap<K, V> removeIf(final BiPredicate<? super K, ? super V> pred) {
+    final TrieNode upd = root.deleteIf((BiPredicate<Object, Object>) pred);
+    return upd == root ? this : ImmutableMap.<K, V>wrap(upd);
+  }
+
+  /**
+   * Creates a map with the same keys in which every value is replaced by the result of
+   * the given function. The shape of the trie is kept, so no key is rehashed, and
+   * subtrees in which every value is unchanged are shared with this map.
+   * @param <W> new value type
+   * @param fun function mapping the old values to the new ones
+   * @return map with the new values
+   */
+  @SuppressWarnings("unchecked")
+  public <W> ImmutableMap<K, W> mapValues(final Function<? super V, ? extends W> fun) {
+    final TrieNode upd = root.mapValues((Function<Object, Object>) fun);
+    return upd == root ? (ImmutableMap<K, W>) this : new ImmutableMap<K, W>(upd);
+  }
+
+  /**
+   * Creates a map that only contains the bindings for which the given predicate
+   * holds. Subtrees in which nothing was dropped are shared with this map.
+   * @param pred predicate taking the key and the value of a binding
+   * @return filtered map
+   */
+  public ImmutableMap<K, V> filter(final BiPredicate<? super K, ? super V> pred) {
+    return removeIf(pred.negate());
+  }
+
+  /**
+   * Creates a map that only contains the bindings whose keys satisfy the given
+   * predicate. Subtrees in which nothing was dropped are shared with this map.
+   * @param pred predicate on the keys
+   * @return filtered map
+   */
+  public ImmutableMap<K, V> filterKeys(final Predicate<? super K> pred) {
+    return removeIf((k, v) -> !pred.test(k));
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void forEach(final BiConsumer<? super K, ? super V> action) {
+    root.forEach((BiConsumer<Object, Object>) action);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void forEachKey(final Consumer<? super K> action) {
+    root.forEach((k, v) -> action.accept((K) k));
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <A> A fold(final A init, final Accumulator<A, ? super K, ? super V> fun) {
+    return (A) root.fold(init, (Accumulator<Object, Object, Object>) fun);
+  }
+
+  /**
+   * Builds a map by collecting bindings in place. The bindings are inserted into the
+   * trie in batches, so every touched node is copied once per batch instead of once
+   * per binding. If a key is added more than once, the last binding wins.
+   * 
+   * @author Leo Woerteler
+   * @param <K> key type
+   * @param <V> value type
+   */
+  public static final class Builder<K, V> {
+    /** Number of bindings collected before they are inserted. */
+    private static final int BATCH = 1 << 12;
+    /** Bindings inserted so far. */
+    private TrieNode root = TrieNode.EMPTY;
+    /** Keys of the pending bindings. */
+    private Object[] keys = new Object[16];
+    /** Values of the pending bindings. */
+    private Object[] values = new Object[16];
+    /** Number of pending bindings. */
+    private int pending;
+
+    /**
+     * Adds a binding.
+     * @param key key
+     * @param value value
+     * @return this builder for convenience
+     */
+    public Builder<K, V> put(final K key, final V value) {
+      if(pending == keys.length) {
+        if(pending == BATCH) {
+          flush();
+        } else {
+          keys = Arrays.copyOf(keys, pending << 1);
+          values = Arrays.copyOf(values, pending << 1);
+        }
+      }
+      keys[pending] = key;
+      values[pending++] = value;
+      return this;
+    }
+
+    /**
+     * Adds all bindings of the given builder, which must not be used afterwards. Both
+     * tries are merged structurally, so subtrees present on only one side are shared.
+     * Bindings of {@code other} win over those of this builder.
+     * @param other builder to add
+     * @return this builder for convenience
+     */
+    public Builder<K, V> putAll(final Builder<? extends K, ? extends V> other) {
+      flush();
+      other.flush();
+      root = root.addAll(other.root, 0);
+      return this;
+    }
+
+    /**
+     * Creates a map from the bindings added so far.
+     * @return the map
+     */
+    public ImmutableMap<K, V> build() {
+      flush();
+      return root.size == 0 ? ImmutableMap.<K, V>empty() : new ImmutableMap<K, V>(root);
+    }
+
+    /** Inserts the pending bindings into the trie. */
+    private void flush() {
+      final int n = pending;
+      if(n == 0) return;
+      final Object[] ks = Arrays.copyOf(keys, n), vs = Arrays.copyOf(values, n);
+      final int[] hs = new int[n];
+      for(int i = 0; i < n; i++) {
+        hs[i] = ks[i] == null ? 0 : ks[i].hashCode();
+      }
+      TrieNode.sort(hs, ks, vs);
+      root = root.insertAll(hs, ks, vs, 0, n, 0);
+      Arrays.fill(keys, 0, n, null);
+      Arrays.fill(values, 0, n, null);
+      pending = 0;
+    }
+  }
+
   @Override
   public V get(final K key) {
     return (V) root.get(key == null ? 0 : key.hashCode(), key, 0);
@@ -99,11 +295,39 @@ public final class ImmutableMap<K, V> extends AbstractPersistentMap<K, V> {
 
   @Override
   public ImmutableMap<K, V> putAll(final Map<? extends K, ? extends V> other) {
-    ImmutableMap<K, V> map = this;
+    final int n = other.size();
+    final Object[] ks = new Object[n], vs = new Object[n];
+    int i = 0;
     for(final Entry<? extends K, ? extends V> e : other.entrySet()) {
-      map = map.put(e.getKey(), e.getValue());
+      ks[i] = e.getKey();
+      vs[i++] = e.getValue();
     }
-    return map;
+    return insertAll(ks, vs);
+  }
+
+  @Override
+  public ImmutableMap<K, V> putAll(final K[] keys, final V[] values) {
+    if(keys.length != values.length) throw new IllegalArgumentException(
+        "keys: " + keys.length + " values: " + values.length);
+    return insertAll(keys.clone(), values.clone());
+  }
+
+  /**
+   * Inserts all bindings from the given arrays, copying every touched node once.
+   * @param ks keys, will be reordered
+   * @param vs values, will be reordered
+   * @return updated map if changed, {@code this} otherwise
+   */
+  private ImmutableMap<K, V> insertAll(final Object[] ks, final Object[] vs) {
+    final int n = ks.length;
+    if(n == 0) return this;
+    final int[] hs = new int[n];
+    for(int i = 0; i < n; i++) {
+      hs[i] = ks[i] == null ? 0 : ks[i].hashCode();
+    }
+    TrieNode.sort(hs, ks, vs);
+    final TrieNode upd = root.insertAll(hs, ks, vs, 0, n, 0);
+    return upd == root ? this : new ImmutableMap<K, V>(upd);
   }
 
   @Override
@@ -112,6 +336,141 @@ public final class ImmutableMap<K, V> extends AbstractPersistentMap<K, V> {
         value, 0));
   }
 
+  /**
+   * Binds the given key to the result of the function applied to its current value.
+   * The map is traversed only once.
+   * @param key key to update
+   * @param fun function taking the current value, or {@code null} if the key is absent
+   * @return updated map if changed, {@code this} if the function returned the
+   *   identical value
+   */
+  @SuppressWarnings("unchecked")
+  public ImmutableMap<K, V> update(final K key, final Function<? super V, ? extends V> fun) {
+    final TrieNode upd = root.update(key == null ? 0 : key.hashCode(), key,
+        v -> fun.apply((V) v), 0);
+    return upd == root ? this : ImmutableMap.<K, V>wrap(upd);
+  }
+
+  /**
+   * Reports the changes from the given older version of this map to this one. Both
+   * tries are walked together and subtrees they share are skipped, so the cost is
+   * proportional to the number of changes if this map was derived from the other one.
+   * @param old older version
+   * @param action consumer of the changes
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public void diff(final ImmutableMap<K, V> old, final Consumer<? super MapChange<K, V>> action) {
+    TrieNode.diff(old.root, root, 0, (Consumer) action);
+  }
+
+  /**
+   * Merges the changes made in two versions derived from a common base version. Both
+   * versions are walked together with the base, subtrees that are unchanged on one
+   * side are taken from the other side as a whole, so the cost is proportional to the
+   * number of changes. Keys that were changed differently on both sides are passed to
+   * the resolver.
+   * @param <K> key type
+   * @param <V> value type
+   * @param base common base version
+   * @param left left version
+   * @param right right version
+   * @param res resolver for conflicting changes
+   * @return merged map
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public static <K, V> ImmutableMap<K, V> merge3(final ImmutableMap<K, V> base,
+      final ImmutableMap<K, V> left, final ImmutableMap<K, V> right,
+      final Resolver<? super K, V> res) {
+    final TrieNode m = TrieNode.merge3(base.root, left.root, right.root, 0, (Resolver) res);
+    return m == left.root ? left : m == right.root ? right : wrap(m);
+  }
+
+  /**
+   * Writes this map as its number of bindings followed by the hash code, key and
+   * value of every binding in the order of the trie.
+   * @param out output
+   * @param keys serializer for the keys
+   * @param values serializer for the values
+   * @throws IOException I/O exception
+   */
+  public void write(final DataOutput out, final Serializer<? super K> keys,
+      final Serializer<? super V> values) throws IOException {
+    Serializer.writeVarInt(out, root.size);
+    final Deque<TrieNode> stack = new ArrayDeque<TrieNode>();
+    stack.push(root);
+    while(!stack.isEmpty()) {
+      final TrieNode nd = stack.pop();
+      if(nd instanceof Branch) {
+        final TrieNode[] kids = ((Branch) nd).copyKids();
+        for(int i = kids.length; --i >= 0;) {
+          if(kids[i] != null) stack.push(kids[i]);
+        }
+      } else if(nd instanceof Leaf) {
+        final Leaf l = (Leaf) nd;
+        write(out, l.hash, l.key, l.value, keys, values);
+      } else if(nd instanceof List) {
+        final List l = (List) nd;
+        for(int i = 0; i < l.size; i++) {
+          write(out, l.hash, l.keys[i], l.values[i], keys, values);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes a binding.
+   * @param out output
+   * @param hash hash code of the key
+   * @param key key
+   * @param value value
+   * @param keys serializer for the keys
+   * @param values serializer for the values
+   * @throws IOException I/O exception
+   */
+  @SuppressWarnings("unchecked")
+  private void write(final DataOutput out, final int hash, final Object key,
+      final Object value, final Serializer<? super K> keys, final Serializer<? super V> values)
+      throws IOException {
+    out.writeInt(hash);
+    keys.write(out, (K) key);
+    values.write(out, (V) value);
+  }
+
+  /**
+   * Reads a map written by {@link #write(DataOutput, Serializer, Serializer)}. The
+   * bindings are already in the order of the trie, so it is built bottom-up in one
+   * pass. The stored hash codes are used unless the key serializer reports unstable
+   * hash codes.
+   * @param <K> key type
+   * @param <V> value type
+   * @param in input
+   * @param keys serializer for the keys
+   * @param values serializer for the values
+   * @return the map
+   * @throws IOException I/O exception
+   */
+  public static <K, V> ImmutableMap<K, V> read(final DataInput in,
+      final Serializer<? extends K> keys, final Serializer<? extends V> values)
+      throws IOException {
+    final int n = Serializer.readVarInt(in);
+    if(n < 0) throw new IOException("Invalid size: " + n);
+    if(n == 0) return empty();
+    final int[] hs = new int[n];
+    final Object[] ks = new Object[n], vs = new Object[n];
+    for(int i = 0; i < n; i++) {
+      hs[i] = in.readInt();
+      ks[i] = keys.read(in);
+      vs[i] = values.read(in);
+    }
+    if(!keys.stableHash()) {
+      for(int i = 0; i < n; i++) {
+        hs[i] = ks[i] == null ? 0 : ks[i].hashCode();
+      }
+      TrieNode.sort(hs, ks, vs);
+    }
+    return new ImmutableMap<K, V>(TrieNode.EMPTY.insertAll(hs, ks, vs, 0, n, 0));
+  }
+
   @Override
   public int size() {
     return root.size;
@@ -231,6 +590,169 @@ public final class ImmutableMap<K, V> extends AbstractPersistentMap<K, V> {
 
   }
 
+  /**
+   * Resolver for a key that was changed differently in two versions of a map.
+   *
+   * @author Leo Woerteler
+   * @param <K> key type
+   * @param <V> value type
+   */
+  public interface Resolver<K, V> {
+    /**
+     * Resolves a conflict, absent bindings are passed as {@code null}.
+     * @param key the key
+     * @param base value in the base version
+     * @param left value in the left version
+     * @param right value in the right version
+     * @return value to bind, {@code null} to remove the key
+     */
+    V resolve(K key, V base, V left, V right);
+  }
+
+  /**
+   * A spliterator over the bindings of consecutive sibling nodes. A single branch is
+   * split into its children, using the sizes of the nodes to balance both halves.
+   * 
+   * @author Leo Woerteler
+   * @param <T> The iteration type.
+   */
+  private static final class TrieSpliterator<T> implements Spliterator<T> {
+    /** Sibling nodes. */
+    private TrieNode[] nodes;
+    /** First remaining node (inclusive). */
+    private int from;
+    /** Last node (exclusive). */
+    private int to;
+    /** Number of bindings in the remaining nodes. */
+    private int size;
+    /** Function creating the iterated items from keys and values. */
+    private final BiFunction<Object, Object, T> conv;
+    /** Iterator used by {@link #tryAdvance(Consumer)}, {@code null} if not started. */
+    private Iterator<T> iter;
+
+    /**
+     * Constructor.
+     * 
+     * @param nodes sibling nodes
+     * @param from first node (inclusive)
+     * @param to last node (exclusive)
+     * @param size number of bindings in the nodes
+     * @param conv function creating the iterated items from keys and values
+     */
+    TrieSpliterator(final TrieNode[] nodes, final int from, final int to, final int size,
+        final BiFunction<Object, Object, T> conv) {
+      this.nodes = nodes;
+      this.from = from;
+      this.to = to;
+      this.size = size;
+      this.conv = conv;
+    }
+
+    /**
+     * Creates a spliterator over all bindings below the given node.
+     * 
+     * @param <T> The iteration type.
+     * @param root root node
+     * @param conv function creating the iterated items from keys and values
+     * @return spliterator
+     */
+    static <T> TrieSpliterator<T> of(final TrieNode root,
+        final BiFunction<Object, Object, T> conv) {
+      return new TrieSpliterator<T>(new TrieNode[] { root }, 0, 1, root.size, conv);
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super T> action) {
+      while(iter == null || !iter.hasNext()) {
+        if(from == to) return false;
+        iter = new PersistentIterator<T>(nodes[from++]) {
+
+          @Override
+          protected T convertNode(final TrieNode node, final int pos) {
+            return conv.apply(node.getKey(pos), node.getValue(pos));
+          }
+
+        };
+      }
+      --size;
+      action.accept(iter.next());
+      return true;
+    }
+
+    @Override
+    public void forEachRemaining(final Consumer<? super T> action) {
+      if(iter != null) {
+        while(iter.hasNext()) {
+          action.accept(iter.next());
+        }
+      }
+      final BiConsumer<Object, Object> each = (k, v) -> action.accept(conv.apply(k, v));
+      while(from < to) {
+        nodes[from++].forEach(each);
+      }
+      size = 0;
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+      if(iter != null) return null;
+      while(to - from == 1) {
+        if(!(nodes[from] instanceof Branch)) return null;
+        // descend into the children of a single branch
+        final TrieNode[] kids = new TrieNode[TrieNode.KIDS];
+        to = ((Branch) nodes[from]).usedKids(kids);
+        from = 0;
+        nodes = kids;
+      }
+      // all nodes are traversed or fewer than two siblings remain
+      if(to - from < 2) return null;
+      // split the siblings where half of the bindings are reached
+      int mid = from, pre = 0;
+      do {
+        pre += nodes[mid++].size;
+      } while(mid < to - 1 && 2 * (pre + nodes[mid].size) <= size);
+      final Spliterator<T> prefix = new TrieSpliterator<T>(nodes, from, mid, pre, conv);
+      from = mid;
+      size -= pre;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      return size;
+    }
+
+    @Override
+    public int characteristics() {
+      return SIZED | SUBSIZED | ORDERED | IMMUTABLE;
+    }
+
+  }
+
+  @Override
+  public Stream<PersistentEntry<K, V>> stream() {
+    return StreamSupport.stream(entrySpliterator(root), false);
+  }
+
+  @Override
+  public Stream<PersistentEntry<K, V>> parallelStream() {
+    return StreamSupport.stream(entrySpliterator(root), true);
+  }
+
+  /**
+   * Creates a spliterator over the entries below the given node.
+   * 
+   * @param <K> The key type.
+   * @param <V> The value type.
+   * @param root root node
+   * @return spliterator
+   */
+  @SuppressWarnings("unchecked")
+  static <K, V> Spliterator<PersistentEntry<K, V>> entrySpliterator(final TrieNode root) {
+    return TrieSpliterator.<PersistentEntry<K, V>>of(root,
+        (k, v) -> new PEntry<K, V>((K) k, (V) v));
+  }
+
   @Override
   public PersistentSequence<K> keySequence() {
     final TrieNode r = root;
@@ -250,6 +772,25 @@ public final class ImmutableMap<K, V> extends AbstractPersistentMap<K, V> {
         };
       }
 
+      @Override
+      @SuppressWarnings("unchecked")
+      public Spliterator<K> spliterator() {
+        return TrieSpliterator.of(r, (k, v) -> (K) k);
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public void forEach(final Consumer<? super K> action) {
+        r.forEach((k, v) -> action.accept((K) k));
+      }
+
+      @Override
+      public void forEachChunk(final ChunkVisitor visitor) {
+        final ChunkBuffer buffer = new ChunkBuffer(visitor);
+        r.forEach((k, v) -> buffer.add(k));
+        buffer.flush();
+      }
+
       @Override
       public K get(final int pos) {
         final Pos p = new Pos(pos);
@@ -283,6 +824,25 @@ public final class ImmutableMap<K, V> extends AbstractPersistentMap<K, V> {
         };
       }
 
+      @Override
+      @SuppressWarnings("unchecked")
+      public Spliterator<V> spliterator() {
+        return TrieSpliterator.of(r, (k, v) -> (V) v);
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public void forEach(final Consumer<? super V> action) {
+        r.forEach((k, v) -> action.accept((V) v));
+      }
+
+      @Override
+      public void forEachChunk(final ChunkVisitor visitor) {
+        final ChunkBuffer buffer = new ChunkBuffer(visitor);
+        r.forEach((k, v) -> buffer.add(v));
+        buffer.flush();
+      }
+
       @Override
       public V get(final int pos) {
         final Pos p = new Pos(pos);
@@ -369,6 +929,25 @@ public final class ImmutableMap<K, V> extends AbstractPersistentMap<K, V> {
         };
       }
 
+      @Override
+      public Spliterator<PersistentEntry<K, V>> spliterator() {
+        return entrySpliterator(r);
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public void forEach(final Consumer<? super PersistentEntry<K, V>> action) {
+        r.forEach((k, v) -> action.accept(new PEntry<K, V>((K) k, (V) v)));
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public void forEachChunk(final ChunkVisitor visitor) {
+        final ChunkBuffer buffer = new ChunkBuffer(visitor);
+        r.forEach((k, v) -> buffer.add(new PEntry<K, V>((K) k, (V) v)));
+        buffer.flush();
+      }
+
       @Override
       public PEntry<K, V> get(final int pos) {
         final Pos p = new Pos(pos);
@@ -1,5 +1,11 @@
 package de.woerteler.persistent.map;
 
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+import de.woerteler.persistent.map.PersistentMap.Accumulator;
+
 /**
  * A single binding of a {@link ImmutableMap}.
  *
@@ -30,8 +36,10 @@ final class Leaf extends TrieNode {
   @Override
   TrieNode insert(final int h, final Object k, final Object v, final int l) {
     // same hash, replace or merge
-    if(h == hash) return equal(k, key) ?
-        new Leaf(h, k, v) : new List(hash, key, value, k, v);
+    if(h == hash) {
+      if(!equal(k, key)) return new List(hash, key, value, k, v);
+      return v == value ? this : new Leaf(h, k, v);
+    }
 
         // different hash, branch
         final TrieNode[] ch = new TrieNode[KIDS];
@@ -48,11 +56,57 @@ final class Leaf extends TrieNode {
         return new Branch(ch, used, 2);
   }
 
+  @Override
+  TrieNode update(final int h, final Object k, final Function<Object, Object> fun,
+      final int l) {
+    if(h == hash && equal(k, key)) {
+      final Object v = fun.apply(value);
+      return v == value ? this : new Leaf(h, k, v);
+    }
+    return insert(h, k, fun.apply(null), l);
+  }
+
   @Override
   TrieNode delete(final int h, final Object k, final int l) {
     return h == hash && equal(k, key) ? null : this;
   }
 
+  @Override
+  TrieNode insertAll(final int[] hs, final Object[] ks, final Object[] vs, final int from,
+      final int to, final int l) {
+    return insertAll(hash, hs, ks, vs, from, to, l);
+  }
+
+  @Override
+  TrieNode deleteAll(final int[] hs, final Object[] ks, final int from, final int to,
+      final int l) {
+    for(int i = from; i < to; i++) {
+      if(hs[i] == hash && equal(ks[i], key)) return null;
+    }
+    return this;
+  }
+
+  @Override
+  TrieNode deleteIf(final BiPredicate<Object, Object> pred) {
+    return pred.test(key, value) ? null : this;
+  }
+
+  @Override
+  TrieNode mapValues(final Function<Object, Object> fun) {
+    final Object v = fun.apply(value);
+    return v == value ? this : new Leaf(hash, key, v);
+  }
+
+  @Override
+  void forEach(final BiConsumer<Object, Object> action) {
+    action.accept(key, value);
+  }
+
+  @Override
+  Object fold(final Object acc, final Accumulator<Object, Object, Object> fun) {
+    return fun.accumulate(acc, key, value);
+  }
+
   @Override
   Object get(final int h, final Object k, final int l) {
     return h == hash && equal(k, key) ? value : null;
@@ -156,9 +210,14 @@ final class Leaf extends TrieNode {
         o.size + ch[k].size - (old != null ? old.size : 0));
   }
 
+  @Override
+  long bytes(final TrieNode old) {
+    return old == this ? 0 : 24;
+  }
+
   @Override
   boolean verify() {
-    return key.hashCode() == hash;
+    return (key == null ? 0 : key.hashCode()) == hash;
   }
 
   @Override
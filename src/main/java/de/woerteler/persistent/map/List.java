@@ -1,6 +1,12 @@
 package de.woerteler.persistent.map;
 
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+import de.woerteler.persistent.map.PersistentMap.Accumulator;
 
 /**
  * Leaf that contains a collision list of keys with the same hash code.
@@ -62,6 +68,107 @@ final class List extends TrieNode {
     return this;
   }
 
+  @Override
+  TrieNode insertAll(final int[] hs, final Object[] ks, final Object[] vs, final int from,
+      final int to, final int l) {
+    return insertAll(hash, hs, ks, vs, from, to, l);
+  }
+
+  @Override
+  TrieNode deleteAll(final int[] hs, final Object[] ks, final int from, final int to,
+      final int l) {
+    Object[] nk = keys, nv = values;
+    for(int i = from; i < to; i++) {
+      if(hs[i] == hash) {
+        for(int j = nk.length; j-- > 0;) {
+          if(equal(ks[i], nk[j])) {
+            nk = delete(nk, j);
+            nv = delete(nv, j);
+            break;
+          }
+        }
+      }
+    }
+    return nk == keys ? this : remaining(nk, nv, nk.length);
+  }
+
+  @Override
+  TrieNode deleteIf(final BiPredicate<Object, Object> pred) {
+    final Object[] nk = new Object[size], nv = new Object[size];
+    int n = 0;
+    for(int i = 0; i < size; i++) {
+      if(!pred.test(keys[i], values[i])) {
+        nk[n] = keys[i];
+        nv[n++] = values[i];
+      }
+    }
+    return n == size ? this : remaining(nk, nv, n);
+  }
+
+  @Override
+  TrieNode mapValues(final Function<Object, Object> fun) {
+    Object[] vs = null;
+    for(int i = 0; i < size; i++) {
+      final Object v = fun.apply(values[i]);
+      if(v != values[i]) {
+        if(vs == null) {
+          vs = values.clone();
+        }
+        vs[i] = v;
+      }
+    }
+    // the key array is never modified, so it can be shared
+    return vs == null ? this : new List(hash, keys, vs);
+  }
+
+  @Override
+  void forEach(final BiConsumer<Object, Object> action) {
+    for(int i = 0; i < size; i++) {
+      action.accept(keys[i], values[i]);
+    }
+  }
+
+  @Override
+  Object fold(final Object acc, final Accumulator<Object, Object, Object> fun) {
+    Object res = acc;
+    for(int i = 0; i < size; i++) {
+      res = fun.accumulate(res, keys[i], values[i]);
+    }
+    return res;
+  }
+
+  /**
+   * Creates the node holding the bindings left over after a deletion.
+   * @param ks remaining keys
+   * @param vs remaining values
+   * @param n number of remaining bindings at the start of the arrays
+   * @return resulting node, {@code null} if nothing remains
+   */
+  private TrieNode remaining(final Object[] ks, final Object[] vs, final int n) {
+    if(n == 0) return null;
+    // single leaf remains
+    if(n == 1) return new Leaf(hash, ks[0], vs[0]);
+    return ks.length == n ? new List(hash, ks, vs) :
+      new List(hash, Arrays.copyOf(ks, n), Arrays.copyOf(vs, n));
+  }
+
+  @Override
+  TrieNode update(final int h, final Object k, final Function<Object, Object> fun,
+      final int l) {
+    if(h == hash) {
+      for(int i = keys.length; i-- > 0;) {
+        if(equal(k, keys[i])) {
+          final Object v = fun.apply(values[i]);
+          if(v == values[i]) return this;
+          final Object[] vs = values.clone();
+          vs[i] = v;
+          return new List(h, keys, vs);
+        }
+      }
+    }
+    return insert(h, k, fun.apply(null), l);
+  }
+
   @Override
   TrieNode insert(final int h, final Object k, final Object v, final int l) {
     // same hash, replace or merge
@@ -69,6 +176,7 @@ final class List extends TrieNode {
       for(int i = keys.length; i-- > 0;) {
         if(equal(k, keys[i])) {
           // replace value
+          if(values[i] == v) return this;
           final Object[] vs = values.clone();
           vs[i] = v;
           return new List(h, keys.clone(), vs);
@@ -214,6 +322,12 @@ final class List extends TrieNode {
         o.used | 1 << k, o.size + ch[k].size - (old != null ? old.size : 0));
   }
 
+  @Override
+  long bytes(final TrieNode old) {
+    // object header and fields plus the arrays of keys and values
+    return old == this ? 0 : 24 + 2 * (16 + 4 * size);
+  }
+
   @Override
   boolean verify() {
     for(int i = 1; i < size; i++) {
@@ -0,0 +1,166 @@
+package de.woerteler.persistent.map;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import de.woerteler.persistent.Agent;
+
+/**
+ * An {@link Agent} for an {@link ImmutableMap}. Consecutive {@link #put(Object, Object)}
+ * and {@link #remove(Object)} messages of a batch are applied with
+ * {@link ImmutableMap#putAll(Object[], Object[])} and
+ * {@link ImmutableMap#removeAll(Iterable)}, so the upper branches of the trie are
+ * copied once per batch instead of once per binding. If such a combined update throws
+ * an exception, for example from the {@code hashCode} of a key, its messages are
+ * applied again one at a time and only the failing ones are skipped and recorded.
+ *
+ * @author Leo Woerteler
+ * @param <K> key type
+ * @param <V> value type
+ */
+public final class MapAgent<K, V> extends Agent<ImmutableMap<K, V>> {
+  /**
+   * Constructor for an empty map, using the common fork-join pool.
+   */
+  public MapAgent() {
+    super(ImmutableMap.<K, V>empty());
+  }
+
+  /**
+   * Constructor.
+   * @param init initial map
+   * @param executor executor running the writer
+   */
+  public MapAgent(final ImmutableMap<K, V> init, final Executor executor) {
+    super(init, executor);
+  }
+
+  /**
+   * Sends a binding to this agent.
+   * @param key key to insert
+   * @param value value to insert
+   */
+  public void put(final K key, final V value) {
+    enqueue(new Put(key, value));
+  }
+
+  /**
+   * Sends the deletion of a key to this agent.
+   * @param key key to delete
+   */
+  public void remove(final K key) {
+    enqueue(new Remove(key));
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  protected ImmutableMap<K, V> apply(final ImmutableMap<K, V> s, final Object[] batch,
+      final int from, final int to) {
+    ImmutableMap<K, V> res = s;
+    int i = from;
+    while(i < to) {
+      final Object msg = batch[i];
+      int j = i + 1;
+      if(msg instanceof Put) {
+        while(j < to && batch[j] instanceof Put) {
+          j++;
+        }
+        final Object[] ks = new Object[j - i], vs = new Object[j - i];
+        for(int p = i; p < j; p++) {
+          ks[p - i] = ((Put) batch[p]).key;
+          vs[p - i] = ((Put) batch[p]).value;
+        }
+        try {
+          res = res.putAll((K[]) ks, (V[]) vs);
+        } catch(final RuntimeException ex) {
+          res = replay(res, batch, i, j);
+        }
+      } else if(msg instanceof Remove) {
+        while(j < to && batch[j] instanceof Remove) {
+          j++;
+        }
+        final ArrayList<K> ks = new ArrayList<K>(j - i);
+        for(int p = i; p < j; p++) {
+          ks.add((K) ((Remove) batch[p]).key);
+        }
+        try {
+          res = res.removeAll(ks);
+        } catch(final RuntimeException ex) {
+          res = replay(res, batch, i, j);
+        }
+      } else {
+        res = apply(res, msg);
+      }
+      i = j;
+    }
+    return res;
+  }
+
+  /**
+   * Applies a run of put or remove messages one at a time after the combined update
+   * failed, so that only the failing messages are skipped and recorded.
+   * @param s current map
+   * @param batch messages
+   * @param from first message (inclusive)
+   * @param to last message (exclusive)
+   * @return new map
+   */
+  @SuppressWarnings("unchecked")
+  private ImmutableMap<K, V> replay(final ImmutableMap<K, V> s, final Object[] batch,
+      final int from, final int to) {
+    ImmutableMap<K, V> res = s;
+    for(int p = from; p < to; p++) {
+      final Object msg = batch[p];
+      try {
+        if(msg instanceof Put) {
+          res = res.put((K) ((Put) msg).key, (V) ((Put) msg).value);
+        } else {
+          res = res.remove((K) ((Remove) msg).key);
+        }
+      } catch(final RuntimeException ex) {
+        res = failed(res, ex);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Message binding a key.
+   *
+   * @author Leo Woerteler
+   */
+  private static final class Put {
+    /** Key. */
+    final Object key;
+    /** Value. */
+    final Object value;
+
+    /**
+     * Constructor.
+     * @param key key
+     * @param value value
+     */
+    Put(final Object key, final Object value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+
+  /**
+   * Message deleting a key.
+   *
+   * @author Leo Woerteler
+   */
+  private static final class Remove {
+    /** Key. */
+    final Object key;
+
+    /**
+     * Constructor.
+     * @param key key
+     */
+    Remove(final Object key) {
+      this.key = key;
+    }
+  }
+}
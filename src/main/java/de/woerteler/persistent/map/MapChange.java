@@ -0,0 +1,97 @@
+package de.woerteler.persistent.map;
+
+/**
+ * A change of a single binding between two versions of a map.
+ *
+ * @author Leo Woerteler
+ * @param <K> key type
+ * @param <V> value type
+ */
+public final class MapChange<K, V> {
+  /** Kinds of changes. */
+  public enum Kind {
+    /** The key was added. */
+    ADDED,
+    /** The key was removed. */
+    REMOVED,
+    /** The value bound to the key changed. */
+    CHANGED
+  }
+
+  /** Kind of the change. */
+  private final Kind kind;
+  /** Key. */
+  private final K key;
+  /** Old value, {@code null} if added. */
+  private final V oldValue;
+  /** New value, {@code null} if removed. */
+  private final V newValue;
+
+  /**
+   * Constructor.
+   * @param kind kind of the change
+   * @param key key
+   * @param oldValue old value
+   * @param newValue new value
+   */
+  MapChange(final Kind kind, final K key, final V oldValue, final V newValue) {
+    this.kind = kind;
+    this.key = key;
+    this.oldValue = oldValue;
+    this.newValue = newValue;
+  }
+
+  /**
+   * Returns the kind of this change.
+   * @return kind
+   */
+  public Kind kind() {
+    return kind;
+  }
+
+  /**
+   * Returns the changed key.
+   * @return key
+   */
+  public K key() {
+    return key;
+  }
+
+  /**
+   * Returns the value bound to the key before the change.
+   * @return old value, {@code null} if the key was added
+   */
+  public V oldValue() {
+    return oldValue;
+  }
+
+  /**
+   * Returns the value bound to the key after the change.
+   * @return new value, {@code null} if the key was removed
+   */
+  public V newValue() {
+    return newValue;
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if(!(obj instanceof MapChange)) return false;
+    final MapChange<?, ?> o = (MapChange<?, ?>) obj;
+    return kind == o.kind && TrieNode.equal(key, o.key) && TrieNode.equal(oldValue, o.oldValue)
+        && TrieNode.equal(newValue, o.newValue);
+  }
+
+  @Override
+  public int hashCode() {
+    return kind.hashCode() * 31 + (key == null ? 0 : key.hashCode());
+  }
+
+  @Override
+  public String toString() {
+    switch(kind) {
+      case ADDED: return "+" + key + ":=" + newValue;
+      case REMOVED: return "-" + key + ":=" + oldValue;
+      default: return "~" + key + ":=" + oldValue + "->" + newValue;
+    }
+  }
+}
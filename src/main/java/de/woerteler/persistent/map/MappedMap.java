@@ -0,0 +1,636 @@
+package de.woerteler.persistent.map;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+
+import de.woerteler.persistent.PersistentSequence;
+import de.woerteler.persistent.Serializer;
+
+/**
+ * A read-only map backed by a memory-mapped image of the trie of an
+ * {@link ImmutableMap}. The image stores the branches with their bitmaps and child
+ * offsets and the serialized keys and values, so lookups walk the trie directly in the
+ * mapping. The key to look for is serialized once and compared with the stored bytes
+ * of the keys whose hash codes match, only the value that is found gets decoded.
+ * Opening an image takes constant time and heap, the pages are loaded by the operating
+ * system on demand and shared between all processes mapping the same file.
+ * Modifications and sequence views copy the whole map onto the heap as an
+ * {@link ImmutableMap}.
+ * <p>
+ * An image is written by {@link #write(ImmutableMap, Path, Serializer, Serializer)}.
+ * Its nodes are referenced by 64 bit offsets and files are mapped in segments of at
+ * most {@value #SEGMENT} bytes, so images are not limited to 2 GB. The hash codes of
+ * the keys are stored, so the key serializer must have
+ * {@link Serializer#stableHash() stable hash codes}, and equal keys must be serialized
+ * to the same bytes.
+ *
+ * @author Leo Woerteler
+ * @param <K> key type
+ * @param <V> value type
+ */
+public final class MappedMap<K, V> extends AbstractPersistentMap<K, V> {
+  /** Magic number at the end of an image. */
+  private static final int MAGIC = 0x504D4150;
+  /** Version of the format. */
+  private static final int VERSION = 2;
+  /** Size of the trailer: root offset, size, version and magic number. */
+  private static final int TRAILER = 20;
+  /** Default size of the mapped segments of an image file. */
+  public static final int SEGMENT = 1 << 30;
+  /** Tag of a branch: bitmap and child offsets. */
+  private static final byte BRANCH = 0;
+  /** Tag of a leaf: hash code and one binding. */
+  private static final byte LEAF = 1;
+  /** Tag of a collision list: hash code, number of bindings and the bindings. */
+  private static final byte LIST = 2;
+
+  /** The segments of the mapped image, all but the last one of equal size. */
+  private final ByteBuffer[] segments;
+  /** Binary logarithm of the segment size. */
+  private final int shift;
+  /** Serializer for the keys. */
+  private final Serializer<K> keys;
+  /** Serializer for the values. */
+  private final Serializer<? extends V> values;
+  /** Offset of the root node, {@code -1} for the empty map. */
+  private final long root;
+  /** Number of bindings. */
+  private final int size;
+
+  /**
+   * Constructor.
+   * @param segments segments of the image
+   * @param shift binary logarithm of the segment size
+   * @param length length of the image
+   * @param keys serializer for the keys
+   * @param values serializer for the values
+   * @throws IOException if the image is malformed
+   */
+  private MappedMap(final ByteBuffer[] segments, final int shift, final long length,
+      final Serializer<K> keys, final Serializer<? extends V> values) throws IOException {
+    this.segments = segments;
+    this.shift = shift;
+    this.keys = keys;
+    this.values = values;
+    final long end = length - TRAILER;
+    if(end < 0 || getInt(end + 16) != MAGIC) throw new IOException("Not a map image");
+    if(getInt(end + 12) != VERSION)
+      throw new IOException("Unsupported version: " + getInt(end + 12));
+    root = getLong(end);
+    size = getInt(end + 8);
+  }
+
+  /**
+   * Maps the image in the given file in segments of {@value #SEGMENT} bytes.
+   * @param <K> key type
+   * @param <V> value type
+   * @param file image file
+   * @param keys serializer for the keys
+   * @param values serializer for the values
+   * @return the map
+   * @throws IOException I/O exception or malformed image
+   */
+  public static <K, V> MappedMap<K, V> open(final Path file, final Serializer<K> keys,
+      final Serializer<? extends V> values) throws IOException {
+    return open(file, SEGMENT, keys, values);
+  }
+
+  /**
+   * Maps the image in the given file in segments of the given size.
+   * @param <K> key type
+   * @param <V> value type
+   * @param file image file
+   * @param segment size of the segments, a power of two of at most {@value #SEGMENT}
+   * @param keys serializer for the keys
+   * @param values serializer for the values
+   * @return the map
+   * @throws IOException I/O exception or malformed image
+   */
+  public static <K, V> MappedMap<K, V> open(final Path file, final int segment,
+      final Serializer<K> keys, final Serializer<? extends V> values) throws IOException {
+    if(segment <= 0 || segment > SEGMENT || Integer.bitCount(segment) != 1)
+      throw new IllegalArgumentException("Segment size: " + segment);
+    check(keys);
+    try(FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+      final long length = ch.size();
+      final int shift = Integer.numberOfTrailingZeros(segment);
+      final long n = length + segment - 1 >>> shift;
+      if(n > Integer.MAX_VALUE) throw new IOException("Image too large: " + length);
+      final ByteBuffer[] segs = new ByteBuffer[(int) n];
+      for(int i = 0; i < segs.length; i++) {
+        final long start = (long) i << shift;
+        segs[i] = ch.map(FileChannel.MapMode.READ_ONLY, start,
+            Math.min(segment, length - start));
+      }
+      return new MappedMap<K, V>(segs, shift, length, keys, values);
+    }
+  }
+
+  /**
+   * Creates a map from an image in the given buffer, which must not be modified.
+   * @param <K> key type
+   * @param <V> value type
+   * @param buffer buffer containing the image
+   * @param keys serializer for the keys
+   * @param values serializer for the values
+   * @return the map
+   * @throws IOException if the image is malformed
+   */
+  public static <K, V> MappedMap<K, V> wrap(final ByteBuffer buffer,
+      final Serializer<K> keys, final Serializer<? extends V> values) throws IOException {
+    check(keys);
+    final ByteBuffer b = buffer.slice();
+    return new MappedMap<K, V>(new ByteBuffer[] { b }, 31, b.limit(), keys, values);
+  }
+
+  /**
+   * Writes the image of a map to the given file.
+   * @param <K> key type
+   * @param <V> value type
+   * @param map the map
+   * @param file image file
+   * @param keys serializer for the keys
+   * @param values serializer for the values
+   * @throws IOException I/O exception
+   */
+  public static <K, V> void write(final ImmutableMap<K, V> map, final Path file,
+      final Serializer<? super K> keys, final Serializer<? super V> values)
+      throws IOException {
+    try(OutputStream os = Files.newOutputStream(file)) {
+      write(map, os, keys, values);
+    }
+  }
+
+  /**
+   * Writes the image of a map to the given stream.
+   * @param <K> key type
+   * @param <V> value type
+   * @param map the map
+   * @param os output stream
+   * @param keys serializer for the keys
+   * @param values serializer for the values
+   * @throws IOException I/O exception
+   */
+  public static <K, V> void write(final ImmutableMap<K, V> map, final OutputStream os,
+      final Serializer<? super K> keys, final Serializer<? super V> values)
+      throws IOException {
+    check(keys);
+    final Writer<K, V> w = new Writer<K, V>(os, keys, values);
+    final TrieNode r = map.root();
+    final long off = r.size == 0 ? -1 : w.node(r);
+    w.out.writeLong(off);
+    w.out.writeInt(r.size);
+    w.out.writeInt(VERSION);
+    w.out.writeInt(MAGIC);
+    w.out.flush();
+  }
+
+  /**
+   * Checks that the hash codes of the keys can be stored.
+   * @param keys serializer for the keys
+   */
+  private static void check(final Serializer<?> keys) {
+    if(!keys.stableHash())
+      throw new IllegalArgumentException("Keys need stable hash codes");
+  }
+
+  @Override
+  public V get(final K key) {
+    final long e = find(key);
+    return e < 0 ? null : value(e);
+  }
+
+  @Override
+  public boolean containsKey(final K key) {
+    return find(key) >= 0;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Finds the binding of the given key.
+   * @param key key to look for
+   * @return offset of the binding, {@code -1} if not found
+   */
+  private long find(final K key) {
+    if(root < 0) return -1;
+    final int h = key == null ? 0 : key.hashCode();
+    long off = root;
+    for(int lvl = 0;; lvl++) {
+      final byte tag = get(off);
+      if(tag == BRANCH) {
+        final int used = getInt(off + 1), bit = 1 << TrieNode.key(h, lvl);
+        if((used & bit) == 0) return -1;
+        off = getLong(off + 5 + 8 * Integer.bitCount(used & bit - 1));
+      } else {
+        if(getInt(off + 1) != h) return -1;
+        final byte[] probe = serialize(key);
+        if(probe == null) return -1;
+        final int n = tag == LEAF ? 1 : getInt(off + 5);
+        long e = off + (tag == LEAF ? 5 : 9);
+        for(int i = 0; i < n; i++) {
+          if(matches(e, probe)) return e;
+          e = next(e);
+        }
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * Serializes a key to look for.
+   * @param key key
+   * @return bytes of the key, {@code null} if the serializer rejects it
+   */
+  private byte[] serialize(final K key) {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try {
+      keys.write(new DataOutputStream(bos), key);
+    } catch(final IOException | RuntimeException ex) {
+      // keys that can't be serialized are not contained in the image
+      return null;
+    }
+    return bos.toByteArray();
+  }
+
+  /**
+   * Checks if the key of a binding consists of the given bytes.
+   * @param e offset of the binding
+   * @param probe bytes of the key to look for
+   * @return result of check
+   */
+  private boolean matches(final long e, final byte[] probe) {
+    if(getInt(e) != probe.length) return false;
+    for(int i = 0; i < probe.length; i++) {
+      if(get(e + 4 + i) != probe[i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Decodes the key of a binding.
+   * @param e offset of the binding
+   * @return key
+   */
+  private K key(final long e) {
+    return decode(keys, e + 4, getInt(e));
+  }
+
+  /**
+   * Decodes the value of a binding.
+   * @param e offset of the binding
+   * @return value
+   */
+  private V value(final long e) {
+    final long v = e + 4 + getInt(e);
+    return decode(values, v + 4, getInt(v));
+  }
+
+  /**
+   * Returns the offset of the binding following the given one.
+   * @param e offset of the binding
+   * @return offset of the next binding
+   */
+  private long next(final long e) {
+    final long v = e + 4 + getInt(e);
+    return v + 4 + getInt(v);
+  }
+
+  /**
+   * Decodes an element.
+   * @param <T> element type
+   * @param ser serializer
+   * @param off offset of the element
+   * @param len length of the element
+   * @return element
+   */
+  private <T> T decode(final Serializer<? extends T> ser, final long off, final int len) {
+    try {
+      return ser.read(new DataInputStream(new ImageInput(off, off + len)));
+    } catch(final IOException ex) {
+      throw new IllegalStateException("Malformed map image", ex);
+    }
+  }
+
+  /**
+   * Returns the segment containing the given offset.
+   * @param off offset in the image
+   * @return segment
+   */
+  private ByteBuffer segment(final long off) {
+    return segments[(int) (off >>> shift)];
+  }
+
+  /**
+   * Returns the position of the given offset in its segment.
+   * @param off offset in the image
+   * @return position
+   */
+  private int position(final long off) {
+    return (int) (off & (1L << shift) - 1);
+  }
+
+  /**
+   * Reads a byte of the image.
+   * @param off offset in the image
+   * @return byte
+   */
+  private byte get(final long off) {
+    return segment(off).get(position(off));
+  }
+
+  /**
+   * Reads a big-endian integer of the image, which may cross the end of a segment.
+   * @param off offset in the image
+   * @return integer
+   */
+  private int getInt(final long off) {
+    final ByteBuffer seg = segment(off);
+    final int p = position(off);
+    if(p + 4 <= seg.limit()) return seg.getInt(p);
+    int v = 0;
+    for(int i = 0; i < 4; i++) {
+      v = v << 8 | get(off + i) & 0xFF;
+    }
+    return v;
+  }
+
+  /**
+   * Reads a big-endian long integer of the image, which may cross the end of a segment.
+   * @param off offset in the image
+   * @return long integer
+   */
+  private long getLong(final long off) {
+    final ByteBuffer seg = segment(off);
+    final int p = position(off);
+    if(p + 8 <= seg.limit()) return seg.getLong(p);
+    return (long) getInt(off) << 32 | getInt(off + 4) & 0xFFFFFFFFL;
+  }
+
+  @Override
+  public void forEach(final BiConsumer<? super K, ? super V> action) {
+    if(root >= 0) forEach(root, action);
+  }
+
+  /**
+   * Visits all bindings in the given node.
+   * @param off offset of the node
+   * @param action action
+   */
+  private void forEach(final long off, final BiConsumer<? super K, ? super V> action) {
+    final byte tag = get(off);
+    if(tag == BRANCH) {
+      final int n = Integer.bitCount(getInt(off + 1));
+      for(int i = 0; i < n; i++) {
+        forEach(getLong(off + 5 + 8 * i), action);
+      }
+    } else {
+      final int n = tag == LEAF ? 1 : getInt(off + 5);
+      long e = off + (tag == LEAF ? 5 : 9);
+      for(int i = 0; i < n; i++) {
+        action.accept(key(e), value(e));
+        e = next(e);
+      }
+    }
+  }
+
+  /**
+   * Copies this map onto the heap. The bindings are read in the order of the trie
+   * together with their stored hash codes, so the trie is built without rehashing.
+   * @return immutable map
+   */
+  public ImmutableMap<K, V> toImmutableMap() {
+    if(root < 0) return ImmutableMap.empty();
+    final int[] hs = new int[size];
+    final Object[] ks = new Object[size], vs = new Object[size];
+    collect(root, hs, ks, vs, 0);
+    return ImmutableMap.wrap(TrieNode.EMPTY.insertAll(hs, ks, vs, 0, size, 0));
+  }
+
+  /**
+   * Decodes all bindings in the given node into the arrays.
+   * @param off offset of the node
+   * @param hs hash codes of the keys
+   * @param ks keys
+   * @param vs values
+   * @param p first free position in the arrays
+   * @return next free position in the arrays
+   */
+  private int collect(final long off, final int[] hs, final Object[] ks, final Object[] vs,
+      final int p) {
+    int i = p;
+    final byte tag = get(off);
+    if(tag == BRANCH) {
+      final int n = Integer.bitCount(getInt(off + 1));
+      for(int c = 0; c < n; c++) {
+        i = collect(getLong(off + 5 + 8 * c), hs, ks, vs, i);
+      }
+    } else {
+      final int h = getInt(off + 1), n = tag == LEAF ? 1 : getInt(off + 5);
+      long e = off + (tag == LEAF ? 5 : 9);
+      for(int c = 0; c < n; c++) {
+        hs[i] = h;
+        ks[i] = key(e);
+        vs[i++] = value(e);
+        e = next(e);
+      }
+    }
+    return i;
+  }
+
+  @Override
+  public ImmutableMap<K, V> put(final K key, final V value) {
+    return toImmutableMap().put(key, value);
+  }
+
+  @Override
+  public ImmutableMap<K, V> remove(final K key) {
+    return toImmutableMap().remove(key);
+  }
+
+  @Override
+  public PersistentSequence<K> keySequence() {
+    return toImmutableMap().keySequence();
+  }
+
+  @Override
+  public PersistentSequence<V> valueSequence() {
+    return toImmutableMap().valueSequence();
+  }
+
+  @Override
+  public PersistentSequence<PersistentEntry<K, V>> entrySequence() {
+    return toImmutableMap().entrySequence();
+  }
+
+  @Override
+  public int hashCode() {
+    return toImmutableMap().hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return toImmutableMap().toString();
+  }
+
+  /**
+   * Writer of the nodes of an image, children before their parents.
+   *
+   * @author Leo Woerteler
+   * @param <K> key type
+   * @param <V> value type
+   */
+  private static final class Writer<K, V> {
+    /** Output. */
+    final DataOutputStream out;
+    /** Serializer for the keys. */
+    private final Serializer<? super K> keys;
+    /** Serializer for the values. */
+    private final Serializer<? super V> values;
+    /** Buffer for serialized elements. */
+    private final ByteArrayOutputStream elem = new ByteArrayOutputStream();
+    /** Output writing to the element buffer. */
+    private final DataOutputStream elemOut = new DataOutputStream(elem);
+    /** Number of bytes written so far. */
+    private long pos;
+
+    /**
+     * Constructor.
+     * @param os output stream
+     * @param keys serializer for the keys
+     * @param values serializer for the values
+     */
+    Writer(final OutputStream os, final Serializer<? super K> keys,
+        final Serializer<? super V> values) {
+      out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+      this.keys = keys;
+      this.values = values;
+    }
+
+    /**
+     * Writes a node after its children.
+     * @param nd node
+     * @return offset of the node
+     * @throws IOException I/O exception
+     */
+    long node(final TrieNode nd) throws IOException {
+      if(nd instanceof Branch) {
+        final Branch b = (Branch) nd;
+        final TrieNode[] kids = b.copyKids();
+        final long[] offs = new long[Integer.bitCount(b.used)];
+        int c = 0;
+        for(final TrieNode kid : kids) {
+          if(kid != null) offs[c++] = node(kid);
+        }
+        final long off = pos;
+        out.writeByte(BRANCH);
+        out.writeInt(b.used);
+        for(final long o : offs) {
+          out.writeLong(o);
+        }
+        pos += 5 + 8 * offs.length;
+        return off;
+      }
+      final long off = pos;
+      if(nd instanceof Leaf) {
+        final Leaf l = (Leaf) nd;
+        out.writeByte(LEAF);
+        out.writeInt(l.hash);
+        pos += 5;
+        binding(l.key, l.value);
+      } else {
+        final List l = (List) nd;
+        out.writeByte(LIST);
+        out.writeInt(l.hash);
+        out.writeInt(l.size);
+        pos += 9;
+        for(int i = 0; i < l.size; i++) {
+          binding(l.keys[i], l.values[i]);
+        }
+      }
+      return off;
+    }
+
+    /**
+     * Writes a binding as the lengths and bytes of the key and the value.
+     * @param key key
+     * @param value value
+     * @throws IOException I/O exception
+     */
+    @SuppressWarnings("unchecked")
+    private void binding(final Object key, final Object value) throws IOException {
+      elem.reset();
+      keys.write(elemOut, (K) key);
+      element();
+      values.write(elemOut, (V) value);
+      element();
+    }
+
+    /**
+     * Writes the serialized element in the buffer.
+     * @throws IOException I/O exception
+     */
+    private void element() throws IOException {
+      elemOut.flush();
+      out.writeInt(elem.size());
+      elem.writeTo(out);
+      pos += 4 + elem.size();
+      elem.reset();
+    }
+  }
+
+  /**
+   * Input stream reading a range of the image, possibly across segments.
+   *
+   * @author Leo Woerteler
+   */
+  private final class ImageInput extends InputStream {
+    /** Current offset. */
+    private long pos;
+    /** End of the range. */
+    private final long end;
+
+    /**
+     * Constructor.
+     * @param start start of the range
+     * @param end end of the range
+     */
+    ImageInput(final long start, final long end) {
+      pos = start;
+      this.end = end;
+    }
+
+    @Override
+    public int read() {
+      return pos < end ? get(pos++) & 0xFF : -1;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+      if(len == 0) return 0;
+      if(pos >= end) return -1;
+      final ByteBuffer seg = segment(pos).duplicate();
+      final int p = position(pos);
+      final int n = (int) Math.min(Math.min(len, end - pos), seg.limit() - p);
+      ((Buffer) seg).position(p);
+      seg.get(b, off, n);
+      pos += n;
+      return n;
+    }
+  }
+}
@@ -1,6 +1,10 @@
 package de.woerteler.persistent.map;
 
 import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import de.woerteler.persistent.PersistentSequence;
 
@@ -54,6 +58,22 @@ public interface PersistentMap<K, V> {
    */
   PersistentMap<K, V> remove(K key);
 
+  /**
+   * Deletes all given keys from this map.
+   * 
+   * @param keys keys to delete
+   * @return updated map if changed, {@code this} otherwise
+   */
+  PersistentMap<K, V> removeAll(Iterable<? extends K> keys);
+
+  /**
+   * Deletes all bindings for which the given predicate holds.
+   * 
+   * @param pred predicate taking the key and the value of a binding
+   * @return updated map if changed, {@code this} otherwise
+   */
+  PersistentMap<K, V> removeIf(BiPredicate<? super K, ? super V> pred);
+
   /**
    * Adds all bindings from the given map into {@code this}.
    * 
@@ -70,6 +90,17 @@ public interface PersistentMap<K, V> {
    */
   PersistentMap<K, V> putAll(Map<? extends K, ? extends V> other);
 
+  /**
+   * Adds all bindings from the given arrays into {@code this}. The key at each
+   * position is bound to the value at the same position. If a key occurs more than
+   * once, the last binding wins.
+   * 
+   * @param keys keys to add
+   * @param values values to add, same length as {@code keys}
+   * @return updated map if changed, {@code this} otherwise
+   */
+  PersistentMap<K, V> putAll(K[] keys, V[] values);
+
   /**
    * Returns a sequence of all keys in an arbitrary order.
    * 
@@ -84,6 +115,73 @@ public interface PersistentMap<K, V> {
    */
   PersistentSequence<V> valueSequence();
 
+  /**
+   * Calls the given action for every binding in an arbitrary order.
+   * 
+   * @param action action taking the key and the value of a binding
+   */
+  void forEach(BiConsumer<? super K, ? super V> action);
+
+  /**
+   * Calls the given action for every key in an arbitrary order.
+   * 
+   * @param action action taking a key
+   */
+  void forEachKey(Consumer<? super K> action);
+
+  /**
+   * Combines all bindings into a single result in an arbitrary order.
+   * 
+   * @param <A> The result type.
+   * @param init initial result
+   * @param fun function combining the result so far with a binding
+   * @return combined result, {@code init} for the empty map
+   */
+  <A> A fold(A init, Accumulator<A, ? super K, ? super V> fun);
+
+  /**
+   * Returns a sequential stream over all entries in an arbitrary order.
+   * 
+   * @return sequential stream of entries
+   */
+  Stream<PersistentEntry<K, V>> stream();
+
+  /**
+   * Returns a possibly parallel stream over all entries in an arbitrary order.
+   * 
+   * @return parallel stream of entries
+   */
+  Stream<PersistentEntry<K, V>> parallelStream();
+
+  /**
+   * Returns an unmodifiable {@link Map} view of this map. Nothing is copied, lookups
+   * are delegated to this map and the entry, key and value views are created lazily.
+   * 
+   * @return read-only map view
+   */
+  Map<K, V> asMap();
+
+  /**
+   * A function that combines an intermediate result with a binding.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   * @param <A> The result type.
+   * @param <K> The key type.
+   * @param <V> The value type.
+   */
+  interface Accumulator<A, K, V> {
+
+    /**
+     * Combines the result with a binding.
+     * @param acc The result so far.
+     * @param key The key.
+     * @param value The value.
+     * @return The new result.
+     */
+    A accumulate(A acc, K key, V value);
+
+  }
+
   /**
    * A key value pair from a persistent map.
    * 
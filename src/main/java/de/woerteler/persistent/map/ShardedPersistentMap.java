@@ -0,0 +1,249 @@
+package de.woerteler.persistent.map;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * A concurrent map that partitions its keys into independent persistent maps. The
+ * shard of a key is chosen by the bits of its hash code that the trie uses on its
+ * first level, so writers to different shards never contend on the same
+ * compare-and-set, and the shards can be joined into one {@link ImmutableMap}
+ * without rehashing.
+ *
+ * @author Leo Woerteler
+ * @param <K> key type
+ * @param <V> value type
+ */
+public final class ShardedPersistentMap<K, V> {
+  /** Roots of the shards, or {@link Frozen} markers while a snapshot is taken. */
+  private final AtomicReferenceArray<Object> shards;
+  /** Bit mask selecting the shard. */
+  private final int mask;
+
+  /** Constructor creating the maximum number of shards. */
+  public ShardedPersistentMap() {
+    this(TrieNode.KIDS);
+  }
+
+  /**
+   * Constructor.
+   * @param n number of shards, a power of two between {@code 1} and {@code 32}
+   */
+  public ShardedPersistentMap(final int n) {
+    if(n < 1 || n > TrieNode.KIDS || Integer.bitCount(n) != 1)
+      throw new IllegalArgumentException("Number of shards: " + n);
+    shards = new AtomicReferenceArray<Object>(n);
+    for(int i = 0; i < n; i++) {
+      shards.set(i, TrieNode.EMPTY);
+    }
+    mask = n - 1;
+  }
+
+  /**
+   * Creates a sharded map containing the bindings of the given map.
+   * @param <K> key type
+   * @param <V> value type
+   * @param n number of shards, a power of two between {@code 1} and {@code 32}
+   * @param map initial bindings
+   * @return sharded map
+   */
+  public static <K, V> ShardedPersistentMap<K, V> from(final int n,
+      final ImmutableMap<K, V> map) {
+    final ShardedPersistentMap<K, V> res = new ShardedPersistentMap<K, V>(n);
+    final ImmutableMap.Builder<K, V>[] bs = newBuilders(n);
+    map.forEach((k, v) -> bs[hash(k) & res.mask].put(k, v));
+    for(int i = 0; i < n; i++) {
+      res.shards.set(i, bs[i].build().root());
+    }
+    return res;
+  }
+
+  /**
+   * Creates an array of map builders.
+   * @param <K> key type
+   * @param <V> value type
+   * @param n number of builders
+   * @return builders
+   */
+  @SuppressWarnings("unchecked")
+  private static <K, V> ImmutableMap.Builder<K, V>[] newBuilders(final int n) {
+    final ImmutableMap.Builder<K, V>[] bs =
+        (ImmutableMap.Builder<K, V>[]) new ImmutableMap.Builder<?, ?>[n];
+    for(int i = 0; i < n; i++) {
+      bs[i] = new ImmutableMap.Builder<K, V>();
+    }
+    return bs;
+  }
+
+  /**
+   * Hash code of a key.
+   * @param key key
+   * @return hash code
+   */
+  private static int hash(final Object key) {
+    return key == null ? 0 : key.hashCode();
+  }
+
+  /**
+   * Returns the number of shards.
+   * @return number of shards
+   */
+  public int shards() {
+    return mask + 1;
+  }
+
+  /**
+   * Returns the current root of a shard for reading, frozen shards can be read.
+   * @param i shard
+   * @return root
+   */
+  private TrieNode read(final int i) {
+    final Object r = shards.get(i);
+    return r instanceof Frozen ? ((Frozen) r).root : (TrieNode) r;
+  }
+
+  /**
+   * Returns the current root of a shard for updating, waiting while it is frozen.
+   * @param i shard
+   * @return root
+   */
+  private TrieNode root(final int i) {
+    for(;;) {
+      final Object r = shards.get(i);
+      if(!(r instanceof Frozen)) return (TrieNode) r;
+      Thread.yield();
+    }
+  }
+
+  /**
+   * Applies the update function to the root of the key's shard until the
+   * compare-and-set succeeds.
+   * @param h hash code of the key
+   * @param fun update function
+   */
+  private void update(final int h, final Function<TrieNode, TrieNode> fun) {
+    final int i = h & mask;
+    for(;;) {
+      final TrieNode old = root(i), upd = fun.apply(old);
+      if(upd == old || shards.compareAndSet(i, old, upd)) return;
+    }
+  }
+
+  /**
+   * Gets the value bound to the given key.
+   * @param key key to look for
+   * @return bound value, {@code null} if not found
+   */
+  @SuppressWarnings("unchecked")
+  public V get(final K key) {
+    final int h = hash(key);
+    return (V) read(h & mask).get(h, key, 0);
+  }
+
+  /**
+   * Checks if the given key exists in the map.
+   * @param key key to look for
+   * @return {@code true}, if the key exists, {@code false} otherwise
+   */
+  public boolean containsKey(final K key) {
+    final int h = hash(key);
+    return read(h & mask).contains(h, key, 0);
+  }
+
+  /**
+   * Binds the given key to the given value.
+   * @param key key to insert
+   * @param value value to insert
+   */
+  public void put(final K key, final V value) {
+    final int h = hash(key);
+    update(h, r -> r.insert(h, key, value, 0));
+  }
+
+  /**
+   * Binds the given key to the result of the function applied to its current value.
+   * The function may be called more than once if other threads update the same shard.
+   * @param key key to update
+   * @param fun function taking the current value, or {@code null} if the key is absent
+   * @return the new value
+   */
+  @SuppressWarnings("unchecked")
+  public V update(final K key, final Function<? super V, ? extends V> fun) {
+    final int h = hash(key);
+    final Object[] res = new Object[1];
+    update(h, r -> r.update(h, key, v -> res[0] = fun.apply((V) v), 0));
+    return (V) res[0];
+  }
+
+  /**
+   * Deletes a key from this map.
+   * @param key key to delete
+   */
+  public void remove(final K key) {
+    final int h = hash(key);
+    update(h, r -> {
+      final TrieNode upd = r.delete(h, key, 0);
+      return upd == null ? TrieNode.EMPTY : upd;
+    });
+  }
+
+  /**
+   * Returns the number of bindings. The shards are counted one after another, so
+   * concurrent updates may or may not be included. Use {@link #snapshot()} for an
+   * exact count.
+   * @return number of bindings
+   */
+  public int size() {
+    int s = 0;
+    for(int i = 0; i <= mask; i++) {
+      s += read(i).size;
+    }
+    return s;
+  }
+
+  /**
+   * Returns a consistent snapshot of all shards as one map in {@code O(shards)}. The
+   * shards are frozen one after another, writers to a frozen shard wait until all
+   * roots are read, readers are not blocked. When the last shard is frozen, the
+   * snapshot is exactly the current content of the map.
+   * @return snapshot
+   */
+  public ImmutableMap<K, V> snapshot() {
+    final int n = mask + 1;
+    final TrieNode[] roots = new TrieNode[n];
+    for(int i = 0; i < n; i++) {
+      TrieNode r;
+      do {
+        r = root(i);
+      } while(!shards.compareAndSet(i, r, new Frozen(r)));
+      roots[i] = r;
+    }
+    for(int i = 0; i < n; i++) {
+      shards.set(i, roots[i]);
+    }
+    return ImmutableMap.wrap(Branch.join(roots));
+  }
+
+  @Override
+  public String toString() {
+    return snapshot().toString();
+  }
+
+  /**
+   * Marker for a shard that is read by a snapshot and must not be modified.
+   *
+   * @author Leo Woerteler
+   */
+  private static final class Frozen {
+    /** Root of the shard. */
+    final TrieNode root;
+
+    /**
+     * Constructor.
+     * @param root root of the shard
+     */
+    Frozen(final TrieNode root) {
+      this.root = root;
+    }
+  }
+}
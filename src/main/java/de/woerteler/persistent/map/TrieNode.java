@@ -1,5 +1,13 @@
 package de.woerteler.persistent.map;
 
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import de.woerteler.persistent.map.PersistentMap.Accumulator;
+
 /**
  * Abstract superclass of all trie nodes.
  *
@@ -20,6 +28,29 @@ abstract class TrieNode {
     TrieNode delete(final int h, final Object k, final int l) {
       return this; }
     @Override
+    TrieNode update(final int h, final Object k, final Function<Object, Object> fun,
+        final int l) {
+      return new Leaf(h, k, fun.apply(null)); }
+    @Override
+    TrieNode insertAll(final int[] hs, final Object[] ks, final Object[] vs, final int from,
+        final int to, final int l) {
+      return insertAll(hs[from], hs, ks, vs, from, to, l); }
+    @Override
+    TrieNode deleteAll(final int[] hs, final Object[] ks, final int from, final int to,
+        final int l) {
+      return this; }
+    @Override
+    TrieNode deleteIf(final BiPredicate<Object, Object> pred) {
+      return this; }
+    @Override
+    TrieNode mapValues(final Function<Object, Object> fun) {
+      return this; }
+    @Override
+    void forEach(final BiConsumer<Object, Object> action) { }
+    @Override
+    Object fold(final Object acc, final Accumulator<Object, Object, Object> fun) {
+      return acc; }
+    @Override
     Object get(final int h, final Object k, final int l) { return null; }
     @Override
     Object getKey(final int pos) {
@@ -51,6 +82,8 @@ abstract class TrieNode {
     @Override
     boolean verify() { return true; }
     @Override
+    long bytes(final TrieNode old) { return 0; }
+    @Override
     public TrieNode insert(final int h, final Object k, final Object v, final int l) {
       return new Leaf(h, k, v); }
     @Override
@@ -83,6 +116,71 @@ abstract class TrieNode {
   abstract TrieNode insert(final int hash, final Object key, final Object val,
       final int lvl);
 
+  /**
+   * Binds the given key to the result of the function applied to its current value,
+   * in a single traversal.
+   * @param hash hash code used as key
+   * @param key key to update
+   * @param fun function taking the current value or {@code null} if the key is absent
+   * @param lvl level
+   * @return updated map if changed, {@code this} if the key was bound to the
+   *   identical value
+   */
+  abstract TrieNode update(int hash, Object key, Function<Object, Object> fun, int lvl);
+
+  /**
+   * Inserts all given bindings into this map. The bindings have to be ordered by
+   * {@link #sort(int[], Object[][])}, so that all bindings belonging to one child are
+   * adjacent. Of two bindings with equal keys, the later one wins.
+   * @param hashes hash codes of the keys
+   * @param keys keys to insert
+   * @param vals values to insert
+   * @param from first position in the arrays (inclusive)
+   * @param to last position in the arrays (exclusive)
+   * @param lvl level
+   * @return updated map if changed, {@code this} otherwise
+   */
+  abstract TrieNode insertAll(int[] hashes, Object[] keys, Object[] vals, int from, int to,
+      int lvl);
+
+  /**
+   * Implementation of {@link #insertAll(int[], Object[], Object[], int, int, int)} for
+   * nodes that don't depend on their level. If all hash codes are equal the bindings
+   * are inserted one by one, otherwise a new branch is created holding this node.
+   * @param h hash code of all keys in this node
+   * @param hashes hash codes of the keys
+   * @param keys keys to insert
+   * @param vals values to insert
+   * @param from first position in the arrays (inclusive)
+   * @param to last position in the arrays (exclusive)
+   * @param lvl level
+   * @return updated map if changed, {@code this} otherwise
+   */
+  final TrieNode insertAll(final int h, final int[] hashes, final Object[] keys,
+      final Object[] vals, final int from, final int to, final int lvl) {
+    boolean same = true;
+    for(int i = from; same && i < to; i++) {
+      same = hashes[i] == h;
+    }
+    if(same) {
+      // only collisions, no need to branch
+      TrieNode node = this;
+      for(int i = from; i < to; i++) {
+        node = node.insert(hashes[i], keys[i], vals[i], lvl);
+      }
+      return node;
+    }
+
+    final TrieNode[] ch = new TrieNode[KIDS];
+    int used = 0;
+    if(size != 0) {
+      final int k = key(h, lvl);
+      ch[k] = this;
+      used = 1 << k;
+    }
+    return Branch.fill(null, ch, used, size, hashes, keys, vals, from, to, lvl);
+  }
+
   /**
    * Deletes a key from this map.
    * @param hash hash code of the key
@@ -93,6 +191,50 @@ abstract class TrieNode {
    */
   abstract TrieNode delete(int hash, Object key, int lvl);
 
+  /**
+   * Deletes all given keys from this map. The keys have to be ordered by
+   * {@link #sort(int[], Object[][])}, so that all keys belonging to one child are
+   * adjacent.
+   * @param hashes hash codes of the keys
+   * @param keys keys to delete
+   * @param from first position in the arrays (inclusive)
+   * @param to last position in the arrays (exclusive)
+   * @param lvl level
+   * @return updated map if changed, {@code null} if deleted,
+   *         {@code this} otherwise
+   */
+  abstract TrieNode deleteAll(int[] hashes, Object[] keys, int from, int to, int lvl);
+
+  /**
+   * Deletes all bindings for which the given predicate holds.
+   * @param pred predicate taking key and value
+   * @return updated map if changed, {@code null} if deleted,
+   *         {@code this} otherwise
+   */
+  abstract TrieNode deleteIf(BiPredicate<Object, Object> pred);
+
+  /**
+   * Replaces every value by the result of the given function. The shape of the trie
+   * is kept, and subtrees in which no value changed are shared.
+   * @param fun function mapping old values to new ones
+   * @return updated map if changed, {@code this} otherwise
+   */
+  abstract TrieNode mapValues(Function<Object, Object> fun);
+
+  /**
+   * Calls the given action for every binding in this map.
+   * @param action action taking key and value
+   */
+  abstract void forEach(BiConsumer<Object, Object> action);
+
+  /**
+   * Combines all bindings in this map with the given result.
+   * @param acc result so far
+   * @param fun function combining a result with a binding
+   * @return combined result
+   */
+  abstract Object fold(Object acc, Accumulator<Object, Object, Object> fun);
+
   /**
    * Looks up the value associated with the given key.
    * @param hash hash code
@@ -205,6 +347,92 @@ abstract class TrieNode {
    */
   abstract boolean verify();
 
+  /**
+   * Estimates the memory in bytes taken by the nodes of this trie that are not shared
+   * with the given trie at the same position. Keys and values are not counted.
+   * @param old trie at the same position in an older version, may be {@code null}
+   * @return estimated number of bytes
+   */
+  abstract long bytes(TrieNode old);
+
+  /**
+   * Reports the changes between two tries at the same level, skipping identical nodes.
+   * @param old old trie
+   * @param nu new trie
+   * @param lvl level
+   * @param action consumer of the changes
+   */
+  static final void diff(final TrieNode old, final TrieNode nu, final int lvl,
+      final Consumer<MapChange<Object, Object>> action) {
+    if(old == nu) return;
+    if(old instanceof Branch && nu instanceof Branch) {
+      ((Branch) nu).diff((Branch) old, lvl, action);
+      return;
+    }
+    // at least one side is a leaf, a collision list or empty
+    old.forEach((k, v) -> {
+      final int h = k == null ? 0 : k.hashCode();
+      if(!nu.contains(h, k, lvl)) {
+        action.accept(new MapChange<Object, Object>(MapChange.Kind.REMOVED, k, v, null));
+      } else {
+        final Object nv = nu.get(h, k, lvl);
+        if(!equal(v, nv))
+          action.accept(new MapChange<Object, Object>(MapChange.Kind.CHANGED, k, v, nv));
+      }
+    });
+    nu.forEach((k, v) -> {
+      if(!old.contains(k == null ? 0 : k.hashCode(), k, lvl))
+        action.accept(new MapChange<Object, Object>(MapChange.Kind.ADDED, k, null, v));
+    });
+  }
+
+  /**
+   * Merges the changes from a common base trie to two derived tries at the same level.
+   * Whenever one side is identical to the base, the other side is taken as a whole.
+   * @param base common base trie
+   * @param left left trie
+   * @param right right trie
+   * @param lvl level
+   * @param res resolver for keys changed differently on both sides
+   * @return merged trie
+   */
+  static final TrieNode merge3(final TrieNode base, final TrieNode left, final TrieNode right,
+      final int lvl, final ImmutableMap.Resolver<Object, Object> res) {
+    if(left == right || right == base) return left;
+    if(left == base) return right;
+    if(left instanceof Branch && right instanceof Branch)
+      return ((Branch) left).merge3(base, (Branch) right, lvl, res);
+    // apply the changes of the right side to the left one
+    final TrieNode[] acc = { left };
+    diff(base, right, lvl, c -> {
+      final Object k = c.key(), bv = c.oldValue(), rv = c.newValue();
+      final int h = k == null ? 0 : k.hashCode();
+      final boolean inB = c.kind() != MapChange.Kind.ADDED;
+      final boolean inL = left.contains(h, k, lvl), inR = c.kind() != MapChange.Kind.REMOVED;
+      final Object lv = inL ? left.get(h, k, lvl) : null;
+      final boolean del;
+      final Object val;
+      if(inL == inB && (!inL || equal(lv, bv))) {
+        // unchanged on the left side
+        del = !inR;
+        val = rv;
+      } else if(inL == inR && (!inL || equal(lv, rv))) {
+        // same change on both sides
+        return;
+      } else {
+        val = res.resolve(k, bv, lv, rv);
+        del = val == null;
+      }
+      if(del) {
+        final TrieNode d = acc[0].delete(h, k, lvl);
+        acc[0] = d == null ? EMPTY : d;
+      } else {
+        acc[0] = acc[0].insert(h, k, val, lvl);
+      }
+    });
+    return acc[0];
+  }
+
   /**
    * Calculates the hash key for the given level.
    * @param hash hash value
@@ -215,6 +443,31 @@ abstract class TrieNode {
     return hash >>> lvl * ImmutableMap.BITS & MASK;
   }
 
+  /**
+   * Sorts the given hash codes so that codes sharing their lowest bits are adjacent,
+   * which is the order in which the trie branches. Equal hash codes keep their
+   * relative order. The given arrays are permuted in the same way.
+   * @param hashes hash codes
+   * @param arrs arrays associated with the hash codes
+   */
+  static final void sort(final int[] hashes, final Object[]... arrs) {
+    final int n = hashes.length;
+    final long[] srt = new long[n];
+    for(int i = 0; i < n; i++) {
+      srt[i] = (long) Integer.reverse(hashes[i]) << 32 | i;
+    }
+    Arrays.sort(srt);
+    for(final Object[] arr : arrs) {
+      final Object[] old = arr.clone();
+      for(int i = 0; i < n; i++) {
+        arr[i] = old[(int) srt[i]];
+      }
+    }
+    for(int i = 0; i < n; i++) {
+      hashes[i] = Integer.reverse((int) (srt[i] >>> 32));
+    }
+  }
+
   /**
    * Creates a new array by appending the given item to the given array.
    * @param arr original array
@@ -0,0 +1,269 @@
+package de.woerteler.persistent.map;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * A history of committed versions of an {@link ImmutableMap}. Every commit gets the next
+ * sequence number and a time stamp, old versions can be read by their number in
+ * {@code O(1)} and by time in {@code O(log n)}. Consecutive versions share most of
+ * their tries, the history keeps an estimate of the memory taken by all nodes that
+ * are retained. Versions exceeding the configured number, age or memory are dropped
+ * from the oldest end, so that nodes no longer shared with newer versions can be
+ * garbage collected. The latest version is always retained.
+ *
+ * @author Leo Woerteler
+ * @param <K> key type
+ * @param <V> value type
+ */
+public final class VersionedMap<K, V> {
+  /** Clock for the time stamps in milliseconds. */
+  private final LongSupplier clock;
+  /** Retained versions in a ring buffer. */
+  private ImmutableMap<K, V>[] maps;
+  /** Time stamps of the retained versions. */
+  private long[] times;
+  /** Position of the oldest retained version in the ring buffer. */
+  private int head;
+  /** Number of retained versions. */
+  private int count;
+  /** Sequence number of the oldest retained version. */
+  private long first;
+  /** Estimated number of bytes of all retained tries. */
+  private long total;
+  /** Maximum number of retained versions. */
+  private int maxVersions = Integer.MAX_VALUE;
+  /** Maximum age of retained versions in milliseconds. */
+  private long maxAge = Long.MAX_VALUE;
+  /** Maximum estimated number of bytes of all retained versions. */
+  private long maxBytes = Long.MAX_VALUE;
+
+  /** Constructor for an empty initial map. */
+  public VersionedMap() {
+    this(ImmutableMap.<K, V>empty());
+  }
+
+  /**
+   * Constructor.
+   * @param init initial map, version {@code 0}
+   */
+  public VersionedMap(final ImmutableMap<K, V> init) {
+    this(init, System::currentTimeMillis);
+  }
+
+  /**
+   * Constructor.
+   * @param init initial map, version {@code 0}
+   * @param clock clock for the time stamps in milliseconds
+   */
+  @SuppressWarnings("unchecked")
+  public VersionedMap(final ImmutableMap<K, V> init, final LongSupplier clock) {
+    this.clock = clock;
+    maps = (ImmutableMap<K, V>[]) new ImmutableMap<?, ?>[8];
+    times = new long[8];
+    maps[0] = init;
+    times[0] = clock.getAsLong();
+    total = init.root().bytes(null);
+    count = 1;
+  }
+
+  /**
+   * Limits the number of retained versions.
+   * @param n maximum number of versions, at least {@code 1}
+   * @return this history
+   */
+  public synchronized VersionedMap<K, V> retainVersions(final int n) {
+    if(n < 1) throw new IllegalArgumentException("Number of versions: " + n);
+    maxVersions = n;
+    trim();
+    return this;
+  }
+
+  /**
+   * Limits the age of retained versions. The age is checked when versions are
+   * committed.
+   * @param age maximum age
+   * @param unit unit of the age
+   * @return this history
+   */
+  public synchronized VersionedMap<K, V> retainAge(final long age, final TimeUnit unit) {
+    if(age < 0) throw new IllegalArgumentException("Age: " + age);
+    maxAge = unit.toMillis(age);
+    trim();
+    return this;
+  }
+
+  /**
+   * Limits the estimated memory taken by the tries of all retained versions.
+   * @param n maximum number of bytes
+   * @return this history
+   */
+  public synchronized VersionedMap<K, V> retainBytes(final long n) {
+    if(n < 0) throw new IllegalArgumentException("Bytes: " + n);
+    maxBytes = n;
+    trim();
+    return this;
+  }
+
+  /**
+   * Records a new version.
+   * @param map the new map
+   * @return sequence number of the new version
+   */
+  public synchronized long commit(final ImmutableMap<K, V> map) {
+    if(count == maps.length) grow();
+    final int i = slot(count - 1), j = slot(count);
+    maps[j] = map;
+    times[j] = Math.max(clock.getAsLong(), times[i]);
+    total += map.root().bytes(maps[i].root());
+    count++;
+    trim();
+    return first + count - 1;
+  }
+
+  /**
+   * Records the result of the given function applied to the latest version.
+   * @param fun update function
+   * @return sequence number of the new version
+   */
+  public synchronized long commit(final UnaryOperator<ImmutableMap<K, V>> fun) {
+    return commit(fun.apply(current()));
+  }
+
+  /**
+   * Returns the latest version.
+   * @return latest map
+   */
+  public synchronized ImmutableMap<K, V> current() {
+    return maps[slot(count - 1)];
+  }
+
+  /**
+   * Returns the sequence number of the latest version.
+   * @return sequence number
+   */
+  public synchronized long version() {
+    return first + count - 1;
+  }
+
+  /**
+   * Returns the sequence number of the oldest retained version.
+   * @return sequence number
+   */
+  public synchronized long oldestVersion() {
+    return first;
+  }
+
+  /**
+   * Returns the number of retained versions.
+   * @return number of versions
+   */
+  public synchronized int versions() {
+    return count;
+  }
+
+  /**
+   * Returns the estimated number of bytes taken by the tries of all retained versions.
+   * Nodes shared between consecutive versions are counted once, keys and values are
+   * not counted.
+   * @return estimated number of bytes
+   */
+  public synchronized long estimatedBytes() {
+    return total;
+  }
+
+  /**
+   * Returns the map as of the given version.
+   * @param version sequence number
+   * @return the map
+   * @throws IllegalArgumentException if the version was dropped or not committed yet
+   */
+  public synchronized ImmutableMap<K, V> asOf(final long version) {
+    if(version < first || version >= first + count)
+      throw new IllegalArgumentException("Version not retained: " + version);
+    return maps[slot((int) (version - first))];
+  }
+
+  /**
+   * Returns the value bound to the given key in the given version.
+   * @param key key to look for
+   * @param version sequence number
+   * @return bound value, {@code null} if not found
+   * @throws IllegalArgumentException if the version was dropped or not committed yet
+   */
+  public V get(final K key, final long version) {
+    return asOf(version).get(key);
+  }
+
+  /**
+   * Returns the sequence number of the latest version committed at or before the
+   * given time.
+   * @param time time in milliseconds
+   * @return sequence number
+   * @throws IllegalArgumentException if all retained versions are younger
+   */
+  public synchronized long versionAt(final long time) {
+    int lo = 0, hi = count - 1;
+    if(times[slot(0)] > time) throw new IllegalArgumentException("No version at " + time);
+    while(lo < hi) {
+      final int mid = lo + hi + 1 >>> 1;
+      if(times[slot(mid)] <= time) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return first + lo;
+  }
+
+  /**
+   * Returns the map as of the given time.
+   * @param time time in milliseconds
+   * @return the latest map committed at or before the given time
+   * @throws IllegalArgumentException if all retained versions are younger
+   */
+  public synchronized ImmutableMap<K, V> asOfTime(final long time) {
+    return asOf(versionAt(time));
+  }
+
+  /**
+   * Returns the position of the given version in the ring buffer.
+   * @param i offset of the version from the oldest one
+   * @return position
+   */
+  private int slot(final int i) {
+    return head + i & maps.length - 1;
+  }
+
+  /** Doubles the size of the ring buffer. */
+  @SuppressWarnings("unchecked")
+  private void grow() {
+    final int n = maps.length;
+    final ImmutableMap<K, V>[] ms = (ImmutableMap<K, V>[]) new ImmutableMap<?, ?>[n << 1];
+    final long[] ts = new long[n << 1];
+    for(int i = 0; i < count; i++) {
+      final int s = slot(i);
+      ms[i] = maps[s];
+      ts[i] = times[s];
+    }
+    maps = ms;
+    times = ts;
+    head = 0;
+  }
+
+  /** Drops the oldest versions until the retention limits are met. */
+  private void trim() {
+    final long now = clock.getAsLong();
+    while(count > 1 && (count > maxVersions || total > maxBytes
+        || now - times[head] > maxAge)) {
+      final int next = slot(1);
+      // nodes of the oldest version that the next one does not share are freed
+      total -= maps[head].root().bytes(maps[next].root());
+      maps[head] = null;
+      head = next;
+      first++;
+      count--;
+    }
+  }
+}
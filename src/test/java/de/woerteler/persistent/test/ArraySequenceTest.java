@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
 
 import org.junit.Test;
 
@@ -120,4 +121,72 @@ public class ArraySequenceTest {
     }
   }
 
+  /** Tests chunked iteration and folding. */
+  @Test
+  public void chunks() {
+    final PersistentSequence<Integer> seq = ArraySequence.from(1, 2, 3, 4);
+    final int[] count = new int[1];
+    seq.forEachChunk((chunk, from, to) -> count[0] += to - from);
+    assertEquals(4, count[0]);
+    assertEquals((Integer) 10, seq.reduce((a, b) -> a + b));
+    assertEquals("1234", seq.fold("", (acc, e) -> acc + e));
+    final StringBuilder sb = new StringBuilder();
+    seq.forEach(sb::append);
+    assertEquals("1234", sb.toString());
+  }
+
+  /** Tests the array range spliterator. */
+  @Test
+  public void spliterator() {
+    final Integer[] arr = new Integer[1000];
+    for(int i = 0; i < arr.length; i++) {
+      arr[i] = i;
+    }
+    final PersistentSequence<Integer> seq = ArraySequence.from(arr);
+    assertTrue(seq.spliterator().hasCharacteristics(Spliterator.SUBSIZED));
+    assertEquals(999 * 1000 / 2, seq.parallelStream().mapToInt(i -> i).sum());
+  }
+
+  /** Tests adding and appending elements behind the array. */
+  @Test
+  public void hybrid() {
+    final Integer[] arr = new Integer[1000];
+    for(int i = 0; i < arr.length; i++) {
+      arr[i] = i;
+    }
+    final PersistentSequence<Integer> base = ArraySequence.from(arr);
+    PersistentSequence<Integer> seq = base;
+    for(int i = 0; i < 100; i++) {
+      seq = seq.add(arr.length + i);
+    }
+    assertTrue(seq instanceof ArraySequence);
+    assertEquals(1000, base.size());
+    assertEquals(1100, seq.size());
+    final Integer[] all = new Integer[1100];
+    for(int i = 0; i < all.length; i++) {
+      all[i] = i;
+      assertEquals((Integer) i, seq.get(i));
+    }
+    assertArrayEquals(all, seq.toArray());
+    assertArrayEquals(all, seq.toArray(new Integer[0]));
+    assertEquals(TrieSequence.from(all), seq);
+    assertEquals(seq, TrieSequence.from(all));
+    assertEquals(TrieSequence.from(all).hashCode(), seq.hashCode());
+    final int[] count = new int[1];
+    seq.forEachChunk((chunk, from, to) -> count[0] += to - from);
+    assertEquals(1100, count[0]);
+    assertEquals(1100, seq.stream().count());
+
+    final PersistentSequence<Integer> twice = seq.append(seq);
+    assertTrue(twice instanceof ArraySequence);
+    assertEquals(2200, twice.size());
+    assertEquals((Integer) 1099, twice.get(2199));
+    assertEquals((Integer) 0, twice.get(1100));
+    assertEquals(1100, seq.size());
+    final PersistentSequence<Integer> flat = base.append(base);
+    assertEquals(2000, flat.size());
+    assertEquals((Integer) 999, flat.get(1999));
+    assertEquals((Integer) 7, base.append(TrieSequence.from(7)).get(1000));
+  }
+
 }
@@ -0,0 +1,108 @@
+package de.woerteler.persistent.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.woerteler.persistent.FlatSequence;
+import de.woerteler.persistent.FlatSequence.CachePolicy;
+import de.woerteler.persistent.Persistent;
+import de.woerteler.persistent.PersistentSequence;
+import de.woerteler.persistent.TrieSequence;
+
+/**
+ * Tests the conversion cache of {@link FlatSequence}.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public class FlatSequenceTest {
+
+  /** The policy before the test. */
+  private CachePolicy old;
+
+  /** Remembers the policy and resets the counters. */
+  @Before
+  public void setUp() {
+    old = FlatSequence.getCachePolicy();
+    FlatSequence.resetCacheStats();
+  }
+
+  /** Restores the policy. */
+  @After
+  public void tearDown() {
+    FlatSequence.setCachePolicy(old);
+    FlatSequence.setCacheBudget(64L << 20);
+  }
+
+  /**
+   * Creates a flat sequence that has to be converted on modification.
+   * 
+   * @return The sequence.
+   */
+  private static PersistentSequence<Integer> flat() {
+    return Persistent.lazyMap(TrieSequence.from(1, 2, 3, 4, 5), i -> i * 10);
+  }
+
+  /**
+   * Adds to the given sequence a few times.
+   * 
+   * @param seq The sequence.
+   * @param times The number of additions.
+   */
+  private static void addTo(final PersistentSequence<Integer> seq, final int times) {
+    for(int i = 0; i < times; i++) {
+      final PersistentSequence<Integer> res = seq.add(i);
+      assertEquals(6, res.size());
+      assertEquals((Integer) 50, res.get(4));
+      assertEquals((Integer) i, res.get(5));
+    }
+  }
+
+  /** Tests that strongly cached conversions are reused. */
+  @Test
+  public void strong() {
+    FlatSequence.setCachePolicy(CachePolicy.STRONG);
+    addTo(flat(), 10);
+    assertEquals(1, FlatSequence.cacheMisses());
+    assertEquals(9, FlatSequence.cacheHits());
+  }
+
+  /** Tests the soft and weak policies. */
+  @Test
+  public void references() {
+    for(final CachePolicy pol : new CachePolicy[] { CachePolicy.SOFT, CachePolicy.WEAK }) {
+      FlatSequence.setCachePolicy(pol);
+      addTo(flat(), 10);
+    }
+    assertEquals(20, FlatSequence.cacheHits() + FlatSequence.cacheMisses());
+    assertTrue(FlatSequence.cacheMisses() >= 2);
+  }
+
+  /** Tests the eviction of the global cache. */
+  @Test
+  public void lru() {
+    FlatSequence.setCachePolicy(CachePolicy.LRU);
+    final PersistentSequence<Integer> a = flat(), b = flat();
+    addTo(a, 3);
+    addTo(b, 3);
+    addTo(a, 1);
+    assertEquals(2, FlatSequence.cacheMisses());
+    assertEquals(5, FlatSequence.cacheHits());
+
+    // no sequence fits into the cache
+    FlatSequence.setCacheBudget(0);
+    FlatSequence.resetCacheStats();
+    addTo(a, 3);
+    assertEquals(3, FlatSequence.cacheMisses());
+    assertEquals(0, FlatSequence.cacheHits());
+  }
+
+  /** Tests that the policy can't be unset. */
+  @Test(expected = NullPointerException.class)
+  public void nullPolicy() {
+    FlatSequence.setCachePolicy(null);
+  }
+
+}
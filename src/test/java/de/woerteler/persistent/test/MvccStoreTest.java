@@ -0,0 +1,129 @@
+package de.woerteler.persistent.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.woerteler.persistent.MvccStore;
+import de.woerteler.persistent.MvccStore.Ref;
+import de.woerteler.persistent.MvccStore.Transaction;
+import de.woerteler.persistent.map.ImmutableMap;
+
+/**
+ * Tests for {@link MvccStore}.
+ *
+ * @author Leo Woerteler
+ */
+public class MvccStoreTest {
+  /** Tests isolation and validation of single transactions. */
+  @Test public void basic() {
+    final MvccStore store = new MvccStore();
+    final Ref<ImmutableMap<String, Integer>> a =
+        store.newRef(ImmutableMap.<String, Integer>empty());
+    final Ref<Integer> b = store.newRef(0);
+
+    final Transaction t1 = store.begin(), t2 = store.begin(), ro = store.begin();
+    t1.update(a, m -> m.put("x", 1));
+    t1.set(b, 1);
+    assertEquals((Integer) 1, t1.get(a).get("x"));
+    assertNull(store.get(a).get("x"));
+    assertTrue(t1.commit());
+    assertEquals((Integer) 1, store.get(b));
+    assertEquals(1, store.version());
+
+    // the read-only transaction still sees its version and commits
+    assertEquals((Integer) 0, ro.get(b));
+    assertEquals(0, ro.get(a).size());
+    assertTrue(ro.commit());
+
+    // t2 read a root that was changed since
+    t2.update(b, v -> v + 10);
+    assertFalse(t2.commit());
+    assertEquals((Integer) 1, store.get(b));
+    assertEquals(1, store.conflicts());
+
+    // blind writes and writes to unrelated roots do not conflict
+    final Transaction t3 = store.begin(), t4 = store.begin();
+    t3.update(a, m -> m.put("y", 2));
+    t4.set(b, 5);
+    assertTrue(t4.commit());
+    assertTrue(t3.commit());
+    assertEquals((Integer) 2, store.get(a).get("y"));
+    assertEquals((Integer) 5, store.get(b));
+    assertEquals(3, store.commits());
+
+    try {
+      t3.get(a);
+      fail();
+    } catch(final IllegalStateException ex) {
+      // expected
+    }
+    try {
+      new MvccStore().get(a);
+      fail();
+    } catch(final IllegalArgumentException ex) {
+      // expected
+    }
+  }
+
+  /**
+   * Transfers between accounts from several threads, checking that every transaction
+   * sees a consistent total.
+   * @throws InterruptedException exception
+   */
+  @Test public void transfers() throws InterruptedException {
+    final int accounts = 8, threads = 4, ops = 2000;
+    final MvccStore store = new MvccStore();
+    final List<Ref<Integer>> refs = new ArrayList<Ref<Integer>>();
+    for(int i = 0; i < accounts; i++) {
+      refs.add(store.newRef(100));
+    }
+    final Ref<ImmutableMap<Integer, Integer>> log =
+        store.newRef(ImmutableMap.<Integer, Integer>empty());
+    final boolean[] ok = { true };
+    final Thread[] ts = new Thread[threads + 1];
+    for(int t = 0; t < threads; t++) {
+      final int id = t;
+      ts[t] = new Thread(() -> {
+        for(int i = 0; i < ops; i++) {
+          final Ref<Integer> from = refs.get((id + i) % accounts);
+          final Ref<Integer> to = refs.get((id * 3 + i * 7 + 1) % accounts);
+          final int n = id * ops + i;
+          store.atomically(tx -> {
+            tx.update(from, v -> v - 1);
+            tx.update(to, v -> v + 1);
+            return tx.update(log, m -> m.put(n, n));
+          });
+        }
+      });
+    }
+    ts[threads] = new Thread(() -> {
+      for(int i = 0; i < ops; i++) {
+        final Transaction tx = store.begin();
+        int sum = 0;
+        for(final Ref<Integer> r : refs) {
+          sum += tx.get(r);
+        }
+        if(sum != accounts * 100) ok[0] = false;
+        assertTrue(tx.commit());
+      }
+    });
+    for(final Thread t : ts) {
+      t.start();
+    }
+    for(final Thread t : ts) {
+      t.join();
+    }
+    assertTrue(ok[0]);
+    assertEquals(threads * ops, store.get(log).size());
+    assertEquals(threads * ops, store.commits());
+    int sum = 0;
+    for(final Ref<Integer> r : refs) {
+      sum += store.get(r);
+    }
+    assertEquals(accounts * 100, sum);
+  }
+}
@@ -0,0 +1,75 @@
+package de.woerteler.persistent.test;
+
+import static org.junit.Assert.*;
+
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import de.woerteler.persistent.PersistentCollectors;
+import de.woerteler.persistent.TrieSequence;
+import de.woerteler.persistent.map.ImmutableMap;
+
+/**
+ * Tests for {@link PersistentCollectors}.
+ *
+ * @author Leo Woerteler
+ */
+public class PersistentCollectorsTest {
+
+  /** Tests {@link PersistentCollectors#toTrieSequence()}. */
+  @Test
+  public void toTrieSequence() {
+    for(final int n : new int[] { 0, 1, 31, 32, 33, 1025, 100000 }) {
+      final TrieSequence<Integer> seq = IntStream.range(0, n).boxed().parallel().collect(
+          PersistentCollectors.<Integer>toTrieSequence());
+      assertEquals("size", n, seq.size());
+      for(int i = 0; i < n; i++) {
+        assertEquals((Integer) i, seq.get(i));
+      }
+      // the built shape has to support further insertions
+      TrieSequence<Integer> more = seq;
+      for(int i = n; i < n + 1100; i++) {
+        more = more.add(i);
+      }
+      for(int i = 0; i < n + 1100; i++) {
+        assertEquals((Integer) i, more.get(i));
+      }
+    }
+    assertSame(TrieSequence.empty(), Stream.<Integer>empty().collect(
+        PersistentCollectors.<Integer>toTrieSequence()));
+  }
+
+  /** Tests {@link PersistentCollectors#toImmutableMap}. */
+  @Test
+  public void toImmutableMap() {
+    final ImmutableMap<Integer, Integer> map = IntStream.range(0, 100000).boxed().parallel()
+        .collect(PersistentCollectors.toImmutableMap(i -> i % 50000, i -> i));
+    assertEquals("size", 50000, map.size());
+    for(int i = 0; i < 50000; i++) {
+      assertEquals("later wins", (Integer) (i + 50000), map.get(i));
+    }
+    assertSame(ImmutableMap.empty(), Stream.<Integer>empty().collect(
+        PersistentCollectors.toImmutableMap(i -> i, i -> i)));
+  }
+
+  /** Tests {@link PersistentCollectors#groupingByImmutable}. */
+  @Test
+  public void groupingByImmutable() {
+    final ImmutableMap<Integer, TrieSequence<Integer>> map = IntStream.range(0, 10000)
+        .boxed().parallel().collect(PersistentCollectors.groupingByImmutable(i -> i % 7));
+    assertEquals("size", 7, map.size());
+    for(int k = 0; k < 7; k++) {
+      final TrieSequence<Integer> seq = map.get(k);
+      int prev = -1;
+      for(final Integer i : seq) {
+        assertEquals(k, i % 7);
+        assertTrue("order", i > prev);
+        prev = i;
+      }
+      assertEquals((10000 - k + 6) / 7, seq.size());
+    }
+  }
+
+}
@@ -0,0 +1,88 @@
+package de.woerteler.persistent.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.woerteler.persistent.PersistentRef;
+import de.woerteler.persistent.map.ImmutableMap;
+
+/**
+ * Tests for {@link PersistentRef}.
+ *
+ * @author Leo Woerteler
+ */
+public class PersistentRefTest {
+  /** Tests the single threaded operations. */
+  @Test public void basic() {
+    final PersistentRef<ImmutableMap<String, Integer>> ref =
+        new PersistentRef<ImmutableMap<String, Integer>>(ImmutableMap.<String, Integer>empty());
+    final ImmutableMap<String, Integer> empty = ref.get();
+    assertSame(empty, ref.swap(m -> m.put("a", 1)));
+    assertEquals((Integer) 1, ref.get().get("a"));
+    assertEquals((Integer) 2, ref.updateAndGet(m -> m.put("b", 2)).get("b"));
+    assertFalse(ref.compareAndSet(empty, empty));
+    assertTrue(ref.compareAndSet(ref.get(), empty));
+    assertSame(empty, ref.get());
+    assertEquals(3, ref.updates());
+    assertEquals(0, ref.retries());
+
+    PersistentRef.swapIn(ref, "x", v -> v == null ? 1 : v + 1);
+    final ImmutableMap<String, Integer> one = PersistentRef.swapIn(ref, "x", v -> v + 1);
+    assertEquals((Integer) 2, one.get("x"));
+    assertSame(one, PersistentRef.swapIn(ref, "x", v -> v));
+  }
+
+  /** Tests the validator. */
+  @Test public void validator() {
+    final PersistentRef<Integer> ref = new PersistentRef<Integer>(0, i -> i >= 0);
+    ref.swap(i -> i + 1);
+    try {
+      ref.swap(i -> i - 5);
+      fail();
+    } catch(final IllegalArgumentException e) {
+      assertEquals((Integer) 1, ref.get());
+    }
+    try {
+      ref.set(-1);
+      fail();
+    } catch(final IllegalArgumentException e) {
+      assertEquals((Integer) 1, ref.get());
+    }
+    assertEquals(2, ref.rejected());
+    assertEquals(1, ref.updates());
+  }
+
+  /**
+   * Tests concurrent updates of a shared map.
+   * @throws InterruptedException exception
+   */
+  @Test public void concurrent() throws InterruptedException {
+    final PersistentRef<ImmutableMap<Integer, Integer>> ref =
+        new PersistentRef<ImmutableMap<Integer, Integer>>(ImmutableMap.<Integer, Integer>empty());
+    final int threads = 4, n = 5000;
+    final List<Thread> ts = new ArrayList<Thread>();
+    for(int t = 0; t < threads; t++) {
+      final Thread th = new Thread(() -> {
+        for(int i = 0; i < n; i++) {
+          PersistentRef.swapIn(ref, i % 100, v -> v == null ? 1 : v + 1);
+        }
+      });
+      ts.add(th);
+      th.start();
+    }
+    for(final Thread th : ts) {
+      th.join();
+    }
+    final ImmutableMap<Integer, Integer> res = ref.get();
+    assertEquals(100, res.size());
+    for(int i = 0; i < 100; i++) {
+      assertEquals((Integer) (threads * n / 100), res.get(i));
+    }
+    assertEquals(threads * n, ref.updates());
+    assertTrue(ref.contention() >= 0);
+  }
+}
@@ -5,11 +5,14 @@ import static org.junit.Assert.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 
 import org.junit.Test;
 
 import de.woerteler.persistent.ArraySequence;
 import de.woerteler.persistent.Persistent;
+import de.woerteler.persistent.PersistentCollectors;
+import de.woerteler.persistent.PersistentSequence;
 import de.woerteler.persistent.TrieSequence;
 
 /**
@@ -41,4 +44,68 @@ public class PersistentTest {
     assertTrue(Persistent.from(it) instanceof TrieSequence);
   }
 
+  /** Tests the lazy views. */
+  @Test
+  public void lazyViews() {
+    final int n = 5000;
+    final Integer[] arr = new Integer[n];
+    for(int i = 0; i < n; i++) {
+      arr[i] = i;
+    }
+    final TrieSequence<Integer> trie = TrieSequence.from(arr);
+    final PersistentSequence<Integer> flat = ArraySequence.from(arr);
+    final int[] calls = { 0 };
+
+    final PersistentSequence<Integer> mapped = Persistent.lazyMap(trie, i -> {
+      calls[0]++;
+      return 2 * i;
+    });
+    assertEquals(0, calls[0]);
+    assertEquals(n, mapped.size());
+    assertEquals(2 * 1234, mapped.get(1234).intValue());
+    assertEquals(1, calls[0]);
+    assertEquals(trie.map(i -> 2 * i), mapped);
+    final PersistentSequence<Integer> mappedMore = mapped.add(-1);
+    assertTrue(mappedMore instanceof TrieSequence);
+    assertEquals(-1, mappedMore.get(n).intValue());
+    assertEquals(2 * (n - 1), mappedMore.get(n - 1).intValue());
+
+    final PersistentSequence<Integer> concat = Persistent.lazyConcat(flat, trie);
+    assertEquals(2 * n, concat.size());
+    assertEquals(17, concat.get(17).intValue());
+    assertEquals(17, concat.get(n + 17).intValue());
+    assertEquals(trie.append(trie), concat);
+    assertEquals(concat, TrieSequence.from(concat));
+    assertEquals(concat, Persistent.lazyConcat(concat, Persistent.<Integer>empty()));
+    assertSame(trie, Persistent.lazyConcat(Persistent.<Integer>empty(), trie));
+    assertEquals(3, concat.add(3).get(2 * n).intValue());
+
+    final PersistentSequence<Integer> odd = Persistent.lazyFilter(flat, i -> i % 2 == 1);
+    final List<Integer> expected = new ArrayList<Integer>();
+    for(final Integer i : arr) {
+      if(i % 2 == 1) {
+        expected.add(i);
+      }
+    }
+    final List<Integer> iterated = new ArrayList<Integer>();
+    for(final Integer i : odd) {
+      iterated.add(i);
+    }
+    assertEquals(expected, iterated);
+    assertEquals(expected.size(), odd.size());
+    assertEquals(2 * 100 + 1, odd.get(100).intValue());
+    try {
+      odd.get(expected.size());
+      fail();
+    } catch(final IndexOutOfBoundsException ex) {
+      // expected
+    }
+    assertEquals(expected, odd.asList());
+    assertEquals(trie.filter(i -> i % 2 == 1), odd);
+    assertEquals(expected.size() + 1, odd.add(0).size());
+    assertEquals(0, Persistent.lazyFilter(trie, i -> false).size());
+    assertEquals(trie, Persistent.lazyFilter(trie, i -> true).add(0).asList().subList(0, n)
+        .stream().collect(PersistentCollectors.toTrieSequence()));
+  }
+
 }
@@ -2,17 +2,26 @@ package de.woerteler.persistent.test;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
 
 import de.woerteler.persistent.ArraySequence;
 import de.woerteler.persistent.Persistent;
 import de.woerteler.persistent.PersistentSequence;
+import de.woerteler.persistent.Serializer;
 import de.woerteler.persistent.TrieSequence;
 
 /**
@@ -289,4 +298,245 @@ public class TrieSequenceTest {
     assertTrue(equalsWithHash(caa, s123456));
   }
 
+
+  /** Tests {@link TrieSequence#forEachChunk(PersistentSequence.ChunkVisitor)}. */
+  @Test public void forEachChunk() {
+    final List<Integer> list = new ArrayList<Integer>();
+    TEST.forEachChunk((chunk, from, to) -> {
+      assertTrue(to - from <= TrieSequence.SIZE);
+      for(int i = from; i < to; i++) {
+        list.add((Integer) chunk[i]);
+      }
+    });
+    assertEquals(TEST.size(), list.size());
+    for(int i = 0; i < list.size(); i++) {
+      assertEquals((Integer) i, list.get(i));
+    }
+    final List<Integer> each = new ArrayList<Integer>();
+    TEST.forEach(each::add);
+    assertEquals(list, each);
+  }
+
+  /**
+   * Tests {@link TrieSequence#fold(Object, java.util.function.BiFunction)} and
+   * {@link TrieSequence#reduce(java.util.function.BinaryOperator)}.
+   */
+  @Test public void foldReduce() {
+    final long sum = 12344L * 12345L / 2;
+    assertEquals(sum, (long) TEST.fold(0L, (acc, e) -> acc + e));
+    assertEquals(sum, (long) TEST.reduce((a, b) -> a + b).intValue());
+    assertEquals("order", "123", TrieSequence.from(1, 2, 3).fold("", (acc, e) -> acc + e));
+    assertEquals((Integer) 7, TrieSequence.singleton(7).reduce((a, b) -> a + b));
+    assertEquals("init", "x", TrieSequence.<Integer>empty().fold("x", (acc, e) -> acc + e));
+  }
+
+  /** Tests {@link TrieSequence#reduce(java.util.function.BinaryOperator)} on empty input. */
+  @Test(expected = NoSuchElementException.class)
+  public void reduceEmpty() {
+    TrieSequence.<Integer>empty().reduce((a, b) -> a + b);
+  }
+
+  /** Tests {@link TrieSequence#spliterator()}. */
+  @Test public void spliterator() {
+    final Spliterator<Integer> spl = TEST.spliterator();
+    assertTrue(spl.hasCharacteristics(Spliterator.SUBSIZED | Spliterator.IMMUTABLE));
+    final Spliterator<Integer> prefix = spl.trySplit();
+    assertEquals(TEST.size(), prefix.estimateSize() + spl.estimateSize());
+    assertEquals("leaf aligned", 0, prefix.estimateSize() % TrieSequence.SIZE);
+    final List<Integer> list = new ArrayList<Integer>();
+    assertTrue(prefix.tryAdvance(list::add));
+    prefix.forEachRemaining(list::add);
+    while(spl.tryAdvance(list::add)) {
+      // consume one by one
+    }
+    assertEquals(TEST.size(), list.size());
+    for(int i = 0; i < list.size(); i++) {
+      assertEquals((Integer) i, list.get(i));
+    }
+    assertNull("too small", TrieSequence.from(1, 2, 3).spliterator().trySplit());
+  }
+
+  /** Tests parallel streams over a {@link TrieSequence}. */
+  @Test public void parallelStream() {
+    final long sum = 12344L * 12345L / 2;
+    assertEquals(sum, TEST.parallelStream().mapToLong(i -> i).sum());
+    assertEquals(TEST.size(), TEST.stream().count());
+    final Object[] arr = TEST.parallelStream().toArray();
+    for(int i = 0; i < arr.length; i++) {
+      assertEquals(i, arr[i]);
+    }
+  }
+
+  /**
+   * Tests {@link TrieSequence#map(java.util.function.Function)},
+   * {@link TrieSequence#filter(java.util.function.Predicate)} and
+   * {@link TrieSequence#flatMap(java.util.function.Function)} for small and big
+   * sequences.
+   */
+  @Test public void transform() {
+    for(final int n : new int[] { 0, 5, 1000, 200003 }) {
+      final TrieSequence<Integer> seq = TrieSequence.from(range(0, n));
+      final TrieSequence<Long> mapped = seq.map(i -> 2L * i);
+      assertEquals("size", n, mapped.size());
+      final TrieSequence<Integer> even = seq.filter(i -> i % 2 == 0);
+      assertEquals("size", (n + 1) / 2, even.size());
+      final TrieSequence<Integer> twice = seq.flatMap(i -> TrieSequence.from(i, i));
+      assertEquals("size", 2 * n, twice.size());
+      for(int i = 0; i < n; i++) {
+        assertEquals(2L * i, (long) mapped.get(i));
+        assertEquals(i, (int) twice.get(2 * i));
+        assertEquals(i, (int) twice.get(2 * i + 1));
+      }
+      for(int i = 0; i < even.size(); i++) {
+        assertEquals(2 * i, (int) even.get(i));
+      }
+      // results must support further insertions
+      assertEquals((Integer) (-1), even.add(-1).get(even.size()));
+      assertEquals((Long) (-1L), mapped.add(-1L).get(n));
+    }
+  }
+
+  /** Tests the bulk operations on sequences big enough to be processed in parallel. */
+  @Test public void parallelBulk() {
+    final ForkJoinPool old = TrieSequence.getPool(), pool = new ForkJoinPool(3);
+    TrieSequence.setPool(pool);
+    try {
+      final int n = 300007;
+      final Integer[] arr = new Integer[n];
+      for(int i = 0; i < n; i++) {
+        arr[i] = i % 1000 == 999 ? null : i;
+      }
+      final TrieSequence<Integer> seq = TrieSequence.from(arr);
+      final PersistentSequence<Integer> flat = ArraySequence.from(arr);
+      assertTrue(equalsWithHash(seq, flat));
+      assertTrue(equalsWithHash(seq, TrieSequence.from(range(0, n)).map(
+          i -> i % 1000 == 999 ? null : i)));
+      assertFalse(seq.equals(seq.map(i -> i != null && i == n - 2 ? Integer.valueOf(-1) : i)));
+      assertArrayEquals(arr, seq.toArray());
+      assertArrayEquals(arr, seq.toArray(new Integer[0]));
+      assertEquals(999, seq.indexOf(null));
+      assertEquals(n - 2, seq.indexOf(n - 2));
+      assertEquals(-1, seq.indexOf(-5));
+    } finally {
+      TrieSequence.setPool(old);
+      pool.shutdown();
+    }
+  }
+
+  /** Tests {@link TrieSequence#toArray()} with more than one chunk. */
+  @Test public void toArrayChunks() {
+    final Object[] arr = TEST.toArray();
+    assertEquals(TEST.size(), arr.length);
+    for(int i = 0; i < arr.length; i++) {
+      assertEquals(i, arr[i]);
+    }
+  }
+
+  /** Tests that {@link TrieSequence#hashCode()} matches {@link List#hashCode()}. */
+  @Test public void listHash() {
+    for(final int n : new int[] { 0, 1, 31, 32, 33, 1024, 1057, 32768, 70001 }) {
+      final List<Integer> list = new ArrayList<Integer>();
+      TrieSequence<Integer> seq = TrieSequence.empty();
+      for(int i = 0; i < n; i++) {
+        final Integer e = i % 7 == 3 ? null : i * 17;
+        list.add(e);
+        seq = seq.add(e);
+      }
+      assertEquals(list.hashCode(), seq.hashCode());
+      // the cached hashes of shared nodes must stay valid
+      final PersistentSequence<Integer> more = seq.add(42).append(seq);
+      final List<Integer> all = new ArrayList<Integer>(list);
+      all.add(42);
+      all.addAll(list);
+      assertEquals(all.hashCode(), more.hashCode());
+      assertEquals(list.hashCode(), seq.hashCode());
+    }
+
+    // nodes whose hash is zero
+    final List<Integer> zeros = Collections.nCopies(40000, 0);
+    final TrieSequence<Integer> seq = TrieSequence.from(zeros);
+    final PersistentSequence<Integer> more = seq.add(1).append(seq);
+    for(int i = 0; i < 2; i++) {
+      assertEquals(zeros.hashCode(), seq.hashCode());
+      final List<Integer> all = new ArrayList<Integer>(zeros);
+      all.add(1);
+      all.addAll(zeros);
+      assertEquals(all.hashCode(), more.hashCode());
+    }
+  }
+
+  /** Tests the read-only {@link List} view of a sequence. */
+  @Test public void asList() {
+    final List<Integer> expected = new ArrayList<Integer>();
+    for(int i = 0; i < TEST.size(); i++) {
+      expected.add(i);
+    }
+    final List<Integer> list = TEST.asList();
+    assertTrue(list instanceof RandomAccess);
+    assertEquals(expected, list);
+    assertEquals(list, expected);
+    assertEquals(expected.hashCode(), list.hashCode());
+    assertEquals(1234, list.get(1234).intValue());
+    assertEquals(4321, list.indexOf(4321));
+    assertFalse(list.contains(-1));
+    assertEquals(expected.subList(100, 200), list.subList(100, 200));
+    assertArrayEquals(expected.toArray(), list.toArray());
+    assertTrue(Persistent.<Integer>empty().asList().isEmpty());
+    try {
+      list.get(list.size());
+      fail();
+    } catch(final IndexOutOfBoundsException e) {
+      // expected
+    }
+    try {
+      list.set(0, 1);
+      fail();
+    } catch(final UnsupportedOperationException e) {
+      // expected
+    }
+    try {
+      list.iterator().remove();
+      fail();
+    } catch(final UnsupportedOperationException e) {
+      // expected
+    } catch(final IllegalStateException e) {
+      // also fine
+    }
+  }
+
+  /**
+   * Tests writing and reading sequences.
+   * @throws IOException exception
+   */
+  @Test public void serialize() throws IOException {
+    for(final int n : new int[] { 0, 1, 31, 32, 33, 1024, 1025, 40000 }) {
+      final TrieSequence.Builder<String> bld = new TrieSequence.Builder<String>();
+      for(int i = 0; i < n; i++) {
+        bld.add(i % 3 == 0 ? "\u00e4" + i : Integer.toString(i));
+      }
+      final TrieSequence<String> seq = bld.build();
+      final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      seq.write(new DataOutputStream(bos), Serializer.STRING);
+      final DataInputStream in =
+          new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+      final TrieSequence<String> read = TrieSequence.read(in, Serializer.STRING);
+      assertEquals(-1, in.read());
+      assertEquals(seq, read);
+      assertEquals(seq.hashCode(), read.hashCode());
+    }
+
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bos);
+    final int[] ints = { 0, 1, -1, 63, -64, 64, 1 << 20, Integer.MAX_VALUE, Integer.MIN_VALUE };
+    for(final int i : ints) {
+      Serializer.INT.write(out, i);
+    }
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+    for(final int i : ints) {
+      assertEquals((Integer) i, Serializer.INT.read(in));
+    }
+    // small values take one byte
+    assertEquals(5 * 1 + 2 + 4 + 2 * 5, bos.size());
+  }
+
 }
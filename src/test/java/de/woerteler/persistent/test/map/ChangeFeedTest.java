@@ -0,0 +1,209 @@
+package de.woerteler.persistent.test.map;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import de.woerteler.persistent.map.ChangeFeed;
+import de.woerteler.persistent.map.ChangeFeed.Batch;
+import de.woerteler.persistent.map.ChangeFeed.Subscription;
+import de.woerteler.persistent.map.ImmutableMap;
+import de.woerteler.persistent.map.MapChange;
+import de.woerteler.persistent.map.MapChange.Kind;
+
+/**
+ * Tests for {@link ChangeFeed} and {@link ImmutableMap#diff}.
+ * @author Leo Woerteler
+ */
+public class ChangeFeedTest {
+  /** Compares structural diffs with the naive comparison. */
+  @Test
+  public void diff() {
+    ImmutableMap<Object, Integer> old = ImmutableMap.empty();
+    for(int i = 0; i < 5000; i++) {
+      old = old.put(i * 7919, i);
+    }
+    // colliding keys end up in collision lists
+    old = old.put(new Colliding(1), 1).put(new Colliding(2), 2);
+    ImmutableMap<Object, Integer> nu = old;
+    final Set<String> expected = new HashSet<String>();
+    for(int i = 0; i < 5000; i += 37) {
+      nu = nu.remove(i * 7919);
+      expected.add("-" + i * 7919 + ":=" + i);
+    }
+    for(int i = 1; i < 5000; i += 101) {
+      nu = nu.put(i * 7919, -i);
+      // removed and bound again is a change
+      expected.remove("-" + i * 7919 + ":=" + i);
+      expected.add("~" + i * 7919 + ":=" + i + "->" + -i);
+    }
+    for(int i = 5000; i < 5100; i++) {
+      nu = nu.put(i * 7919, i);
+      expected.add("+" + i * 7919 + ":=" + i);
+    }
+    nu = nu.put(new Colliding(3), 3).remove(new Colliding(1));
+    expected.add("+c3:=3");
+    expected.add("-c1:=1");
+    // rebinding the same value is not a change
+    nu = nu.put(2 * 7919, 2);
+
+    final Set<String> actual = new HashSet<String>();
+    nu.diff(old, c -> assertTrue(actual.add(c.toString())));
+    assertEquals(expected, actual);
+
+    final List<MapChange<Object, Integer>> none = new ArrayList<MapChange<Object, Integer>>();
+    nu.diff(nu, none::add);
+    assertTrue(none.isEmpty());
+    ImmutableMap.<Object, Integer>empty().diff(nu, none::add);
+    assertEquals(nu.size(), none.size());
+    for(final MapChange<Object, Integer> c : none) {
+      assertEquals(Kind.REMOVED, c.kind());
+      assertEquals(nu.get(c.key()), c.oldValue());
+    }
+  }
+
+  /**
+   * Tests delivery and backpressure.
+   * @throws InterruptedException exception
+   */
+  @Test
+  public void feed() throws InterruptedException {
+    final ChangeFeed<String, Integer> feed = new ChangeFeed<String, Integer>();
+    feed.update(m -> m.put("a", 1));
+    final Subscription<String, Integer> sub = feed.subscribe(2);
+    assertEquals(1, sub.startVersion());
+    feed.update(m -> m.put("b", 2).put("a", 3));
+    final ImmutableMap<String, Integer> cur = feed.get();
+    assertEquals(2, feed.publish(cur));
+    final Batch<String, Integer> b = sub.take();
+    assertEquals(2, b.version());
+    assertSame(cur, b.map());
+    assertEquals(2, b.changes().size());
+    assertNull(sub.poll(0, TimeUnit.MILLISECONDS));
+
+    feed.update(m -> m.put("c", 3));
+    feed.update(m -> m.put("d", 4));
+    assertEquals(2, sub.pending());
+    final Thread writer = new Thread(() -> {
+      try {
+        feed.update(m -> m.remove("a"));
+      } catch(final InterruptedException ex) {
+        throw new RuntimeException(ex);
+      }
+    });
+    writer.start();
+    writer.join(100);
+    // the writer waits for the full queue
+    assertTrue(writer.isAlive());
+    // the new map only becomes visible once its changes can be delivered
+    assertTrue(feed.get().containsKey("a"));
+    assertEquals(4, feed.version());
+    final List<Batch<String, Integer>> got = new ArrayList<Batch<String, Integer>>();
+    assertEquals(2, sub.drainTo(got, 10));
+    writer.join();
+    final Batch<String, Integer> last = sub.take();
+    assertEquals(5, last.version());
+    assertEquals(Kind.REMOVED, last.changes().get(0).kind());
+    assertEquals((Integer) 3, last.changes().get(0).oldValue());
+
+    sub.close();
+    for(int i = 0; i < 10; i++) {
+      final int k = i;
+      feed.update(m -> m.put("x", k));
+    }
+    assertEquals(0, sub.pending());
+  }
+
+  /**
+   * Tests that a writer interrupted while waiting for a full queue leaves the feed and
+   * all subscribers unchanged.
+   * @throws InterruptedException exception
+   */
+  @Test
+  public void interrupted() throws InterruptedException {
+    final ChangeFeed<String, Integer> feed = new ChangeFeed<String, Integer>();
+    final Subscription<String, Integer> fast = feed.subscribe(10);
+    final Subscription<String, Integer> slow = feed.subscribe(1);
+    feed.update(m -> m.put("a", 1));
+    final AtomicBoolean aborted = new AtomicBoolean();
+    final Thread writer = new Thread(() -> {
+      try {
+        feed.update(m -> m.put("b", 2));
+      } catch(final InterruptedException ex) {
+        aborted.set(true);
+      }
+    });
+    writer.start();
+    writer.join(100);
+    assertTrue(writer.isAlive());
+    writer.interrupt();
+    writer.join();
+    assertTrue(aborted.get());
+    assertEquals(1, feed.version());
+    assertFalse(feed.get().containsKey("b"));
+    assertEquals(1, fast.pending());
+    assertEquals(1, slow.pending());
+
+    // the next commit gets the version number of the aborted one
+    assertEquals(1, slow.take().version());
+    feed.update(m -> m.put("c", 3));
+    assertEquals(1, fast.take().version());
+    final Batch<String, Integer> b = fast.take();
+    assertEquals(2, b.version());
+    assertEquals(1, b.changes().size());
+    assertEquals(2, slow.take().version());
+
+    // closing a subscription releases a waiting writer
+    feed.update(m -> m.put("d", 4));
+    final Thread blocked = new Thread(() -> {
+      try {
+        feed.update(m -> m.put("e", 5));
+      } catch(final InterruptedException ex) {
+        throw new RuntimeException(ex);
+      }
+    });
+    blocked.start();
+    blocked.join(100);
+    assertTrue(blocked.isAlive());
+    slow.close();
+    blocked.join();
+    assertEquals(4, feed.version());
+    assertEquals(2, fast.pending());
+  }
+
+  /** Key with a constant hash code. */
+  private static final class Colliding {
+    /** Id. */
+    final int id;
+
+    /**
+     * Constructor.
+     * @param id id
+     */
+    Colliding(final int id) {
+      this.id = id;
+    }
+
+    @Override
+    public int hashCode() {
+      return 42;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      return obj instanceof Colliding && ((Colliding) obj).id == id;
+    }
+
+    @Override
+    public String toString() {
+      return "c" + id;
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package de.woerteler.persistent.test.map;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import de.woerteler.persistent.map.ConcurrentTrieMap;
+import de.woerteler.persistent.map.ImmutableMap;
+import de.woerteler.persistent.map.PersistentMap;
+
+/**
+ * Tests for {@link ConcurrentTrieMap}.
+ * @author Leo Woerteler
+ */
+public class ConcurrentTrieMapTest {
+  /** Tests the single threaded operations, including hash collisions. */
+  @Test
+  public void sequential() {
+    final ConcurrentTrieMap<Object, Integer> map = new ConcurrentTrieMap<Object, Integer>();
+    final Map<Object, Integer> expected = new HashMap<Object, Integer>();
+    final List<Object> keys = new ArrayList<Object>();
+    for(int i = 0; i < 3000; i++) {
+      keys.add(i);
+      keys.add((long) i);
+      keys.add(i * 1024);
+    }
+    keys.add("Aa");
+    keys.add("BB");
+    keys.add(null);
+    for(final Object k : keys) {
+      assertEquals(expected.put(k, k == null ? 0 : k.hashCode()),
+          map.put(k, k == null ? 0 : k.hashCode()));
+    }
+    assertEquals(expected.size(), map.size());
+    assertEquals(ImmutableMap.from(expected), map.toImmutableMap());
+    assertEquals((Integer) "BB".hashCode(), map.get("BB"));
+    assertTrue(map.containsKey(null));
+    assertFalse(map.containsKey(-1));
+    assertNull(map.get(-1));
+
+    final PersistentMap<Object, Integer> snap = map.snapshot();
+    final ImmutableMap<Object, Integer> before = map.toImmutableMap();
+    for(int i = 0; i < keys.size(); i += 2) {
+      final Object k = keys.get(i);
+      assertEquals(expected.remove(k), map.remove(k));
+      assertNull(map.remove(k));
+    }
+    assertEquals(ImmutableMap.from(expected), map.toImmutableMap());
+    assertEquals(before, snap);
+    assertEquals(snap, before);
+    assertEquals(before.hashCode(), snap.hashCode());
+    assertEquals(before.size(), snap.size());
+    assertEquals((Integer) 0, snap.get(null));
+    assertEquals(before.put(-1, -1), snap.put(-1, -1));
+
+    final ConcurrentTrieMap<Object, Integer> copy = map.copy();
+    copy.put("copy", 1);
+    map.put("map", 2);
+    assertFalse(map.containsKey("copy"));
+    assertFalse(copy.containsKey("map"));
+
+    for(final Object k : keys) {
+      map.remove(k);
+    }
+    map.remove("map");
+    assertEquals(0, map.size());
+    assertEquals(ImmutableMap.empty(), map.toImmutableMap());
+    assertEquals(expected.size() + 1, copy.size());
+  }
+
+  /**
+   * Tests that snapshots taken during concurrent writes are consistent. Every writer
+   * inserts its keys in ascending order, so a snapshot must contain a prefix of them.
+   * @throws InterruptedException exception
+   */
+  @Test
+  public void consistentSnapshots() throws InterruptedException {
+    final ConcurrentTrieMap<Integer, Integer> map = new ConcurrentTrieMap<Integer, Integer>();
+    final int threads = 4, n = 20000;
+    final AtomicBoolean failed = new AtomicBoolean();
+    final List<Thread> ts = new ArrayList<Thread>();
+    for(int t = 0; t < threads; t++) {
+      final int id = t;
+      final Thread th = new Thread(() -> {
+        try {
+          for(int i = 0; i < n; i++) {
+            map.put(i * threads + id, i);
+            if(i % 3 == 0 && i >= 3) {
+              map.remove((i - 3) * threads + id);
+              map.put((i - 3) * threads + id, i - 3);
+            }
+          }
+        } catch(final Throwable ex) {
+          failed.set(true);
+        }
+      });
+      ts.add(th);
+      th.start();
+    }
+    while(ts.get(0).isAlive()) {
+      final PersistentMap<Integer, Integer> snap = map.snapshot();
+      final int[] max = new int[threads], count = new int[threads];
+      snap.forEach((k, v) -> {
+        max[k % threads] = Math.max(max[k % threads], v + 1);
+        count[k % threads]++;
+      });
+      for(int t = 0; t < threads; t++) {
+        // a remove without its re-insertion leaves at most one gap
+        assertTrue(count[t] >= max[t] - 1 && count[t] <= max[t]);
+      }
+    }
+    for(final Thread th : ts) {
+      th.join();
+    }
+    assertFalse(failed.get());
+    assertEquals(threads * n, map.size());
+    for(int i = 0; i < threads * n; i++) {
+      assertEquals((Integer) (i / threads), map.get(i));
+    }
+  }
+}
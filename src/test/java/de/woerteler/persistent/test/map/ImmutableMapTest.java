@@ -3,17 +3,33 @@ package de.woerteler.persistent.test.map;
 import static de.woerteler.persistent.test.TrieSequenceTest.*;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
 
 import org.junit.Test;
 
 import de.woerteler.persistent.Persistent;
 import de.woerteler.persistent.PersistentSequence;
+import de.woerteler.persistent.Serializer;
 import de.woerteler.persistent.map.ImmutableMap;
 import de.woerteler.persistent.map.PersistentMap;
 import de.woerteler.persistent.map.PersistentMap.PersistentEntry;
@@ -792,4 +808,410 @@ public class ImmutableMapTest {
     }
   }
 
+
+  /** Tests {@link ImmutableMap#removeAll(Iterable)}. */
+  @Test
+  public void removeAll() {
+    ImmutableMap<Number, Number> map = ImmutableMap.empty();
+    final List<Number> odd = new ArrayList<Number>();
+    for(int i = 0; i < 5000; i++) {
+      map = map.put(i, i).put((long) i, i);
+      if(i % 2 == 1) {
+        odd.add(i);
+        odd.add((long) i);
+      }
+    }
+    final ImmutableMap<Number, Number> even = map.removeAll(odd);
+    assertEquals("size", 5000, even.size());
+    for(int i = 0; i < 5000; i++) {
+      assertEquals(i % 2 == 0, even.containsKey(i));
+      assertEquals(i % 2 == 0, even.containsKey((long) i));
+    }
+    assertSame("not contained", even, even.removeAll(odd));
+    assertSame("nothing", map, map.removeAll(Collections.<Number>emptyList()));
+    assertSame("everything", ImmutableMap.empty(), even.removeAll(even.keySequence()));
+
+    // removing one of two children collapses the branch
+    final int s = 1 << ImmutableMap.BITS;
+    assertEquals(mapFrom(s), mapFrom(0, s).removeAll(Arrays.<Number>asList(0, 1)));
+    assertEquals(mapFrom(0L), mapFrom(0, 0L, 1).removeAll(Arrays.<Number>asList(0, 1)));
+  }
+
+  /** Tests {@link ImmutableMap#removeIf(java.util.function.BiPredicate)}. */
+  @Test
+  public void removeIf() {
+    ImmutableMap<Integer, Integer> map = ImmutableMap.empty();
+    for(int i = 0; i < 5000; i++) {
+      map = map.put(i, i % 3);
+    }
+    final ImmutableMap<Integer, Integer> res = map.removeIf((k, v) -> v != 0);
+    assertEquals("size", 1667, res.size());
+    for(int i = 0; i < 5000; i++) {
+      assertEquals(i % 3 == 0, res.containsKey(i));
+    }
+    assertSame("unchanged", res, res.removeIf((k, v) -> v != 0));
+    assertSame("everything", ImmutableMap.empty(), res.removeIf((k, v) -> true));
+    assertEquals(mapFrom(0L), mapFrom(0, 0L, (short) 0).removeIf(
+        (k, v) -> !(k instanceof Long)));
+  }
+
+  /** Tests {@link ImmutableMap#putAll(Object[], Object[])}. */
+  @Test
+  public void putAllArrays() {
+    ImmutableMap<Number, Number> map = ImmutableMap.empty();
+    for(int i = 0; i < 1000; i++) {
+      map = map.put(i, i);
+    }
+    ImmutableMap<Number, Number> exp = map;
+    final Number[] ks = new Number[3000], vs = new Number[3000];
+    for(int i = 0; i < 1000; i++) {
+      ks[3 * i] = i + 500;
+      ks[3 * i + 1] = (long) i;
+      ks[3 * i + 2] = i + 500;
+      vs[3 * i] = -i;
+      vs[3 * i + 1] = i;
+      vs[3 * i + 2] = i;
+      exp = exp.put(i + 500, -i).put((long) i, i).put(i + 500, i);
+    }
+    final ImmutableMap<Number, Number> res = map.putAll(ks, vs);
+    assertEquals("size", 2500, res.size());
+    assertEquals(exp, res);
+    assertEquals("original", 1000, map.size());
+    assertSame("nothing", map, map.putAll(new Number[0], new Number[0]));
+    // bindings that are already present don't change the map
+    final Number[] oks = new Number[1000], ovs = new Number[1000];
+    for(int i = 0; i < 1000; i++) {
+      oks[i] = i;
+      ovs[i] = map.get(i);
+    }
+    assertSame("present", map, map.putAll(oks, ovs));
+    assertSame("present", map, map.putAll(Collections.singletonMap(1, map.get(1))));
+    final ImmutableMap<Number, Number> coll = mapFromPairs(0, 1, 0L, 2, (short) 0, 3);
+    assertSame("collisions", coll, coll.putAll(new Number[] { 0L, 0 },
+        new Number[] { coll.get(0L), coll.get(0) }));
+    assertNotSame("changed", map, map.putAll(new Number[] { 1, 2 }, new Number[] { 1, -2 }));
+    assertEquals(mapFromPairs(0, 1, 0L, 2, (short) 0, 3),
+        ImmutableMap.<Number, Number>empty().putAll(new Number[] { 0, 0L, (short) 0 },
+            new Number[] { 1, 2, 3 }));
+  }
+
+  /** Tests that {@link ImmutableMap#putAll(Object[], Object[])} rejects wrong lengths. */
+  @Test(expected = IllegalArgumentException.class)
+  public void putAllLengths() {
+    ImmutableMap.<Number, Number>empty().putAll(new Number[1], new Number[2]);
+  }
+
+  /** Tests {@link ImmutableMap#mapValues(java.util.function.Function)}. */
+  @Test
+  public void mapValues() {
+    ImmutableMap<Number, Number> map = ImmutableMap.empty();
+    for(int i = 0; i < 1000; i++) {
+      map = map.put(i, i).put((long) i, i);
+    }
+    final ImmutableMap<Number, String> str = map.mapValues(v -> "v" + v);
+    assertEquals("size", map.size(), str.size());
+    for(int i = 0; i < 1000; i++) {
+      assertEquals("v" + i, str.get(i));
+      assertEquals("v" + i, str.get((long) i));
+    }
+    assertSame("identity", map, map.mapValues(v -> v));
+    final ImmutableMap<Number, Number> one = map.mapValues(v -> v.intValue() == 7 ? -7 : v);
+    assertEquals(map.put(7, -7).put(7L, -7), one);
+  }
+
+  /**
+   * Tests {@link ImmutableMap#filter(java.util.function.BiPredicate)} and
+   * {@link ImmutableMap#filterKeys(java.util.function.Predicate)}.
+   */
+  @Test
+  public void filter() {
+    ImmutableMap<Number, Number> map = ImmutableMap.empty();
+    for(int i = 0; i < 1000; i++) {
+      map = map.put(i, i % 2).put((long) i, i % 2);
+    }
+    final ImmutableMap<Number, Number> even = map.filter((k, v) -> v.intValue() == 0);
+    assertEquals("size", 1000, even.size());
+    assertSame("all kept", even, even.filter((k, v) -> v.intValue() == 0));
+    final ImmutableMap<Number, Number> ints = map.filterKeys(k -> k instanceof Integer);
+    assertEquals("size", 1000, ints.size());
+    for(int i = 0; i < 1000; i++) {
+      assertTrue(ints.containsKey(i));
+      assertFalse(ints.containsKey((long) i));
+    }
+  }
+
+  /**
+   * Tests {@link ImmutableMap#forEach(java.util.function.BiConsumer)},
+   * {@link ImmutableMap#forEachKey(java.util.function.Consumer)} and
+   * {@link ImmutableMap#fold(Object, PersistentMap.Accumulator)}.
+   */
+  @Test
+  public void internalIteration() {
+    ImmutableMap<Number, Number> map = ImmutableMap.empty();
+    long sum = 0;
+    for(int i = 0; i < 1000; i++) {
+      map = map.put(i, i).put((long) i, 2 * i);
+      sum += 3 * i;
+    }
+    final Map<Number, Number> seen = new HashMap<Number, Number>();
+    map.forEach((k, v) -> assertNull(seen.put(k, v)));
+    assertEquals(map, ImmutableMap.from(seen));
+    final List<Number> keys = new ArrayList<Number>();
+    map.forEachKey(k -> keys.add(k));
+    assertEquals(seen.keySet(), new HashSet<Number>(keys));
+    assertEquals(sum, (long) map.fold(0L, (acc, k, v) -> acc + v.longValue()));
+    assertEquals("empty", "init", ImmutableMap.empty().fold("init", (acc, k, v) -> "x"));
+  }
+
+  /** Tests that the chunked iteration of map views matches their iterators. */
+  @Test
+  public void viewChunks() {
+    ImmutableMap<Number, Number> map = ImmutableMap.empty();
+    for(int i = 0; i < 1000; i++) {
+      map = map.put(i, -i).put((long) i, i);
+    }
+    final PersistentSequence<Number> keys = map.keySequence(), values = map.valueSequence();
+    final List<Object> chunked = new ArrayList<Object>(), iterated = new ArrayList<Object>();
+    keys.forEachChunk((chunk, from, to) -> chunked.addAll(
+        Arrays.asList(chunk).subList(from, to)));
+    values.forEachChunk((chunk, from, to) -> chunked.addAll(
+        Arrays.asList(chunk).subList(from, to)));
+    for(final Number n : keys) {
+      iterated.add(n);
+    }
+    values.forEach(iterated::add);
+    assertEquals(iterated, chunked);
+    assertEquals(map.size(), (int) map.entrySequence().fold(0, (acc, e) -> acc + 1));
+  }
+
+  /** Tests the spliterators of the map views. */
+  @Test
+  public void spliterators() {
+    ImmutableMap<Number, Number> map = ImmutableMap.empty();
+    for(int i = 0; i < 10000; i++) {
+      map = map.put(i, i).put((long) i, i);
+    }
+    final Spliterator<Number> spl = map.keySequence().spliterator();
+    assertTrue(spl.hasCharacteristics(Spliterator.SUBSIZED));
+    final Spliterator<Number> prefix = spl.trySplit();
+    assertEquals(map.size(), prefix.estimateSize() + spl.estimateSize());
+    assertTrue("balanced", Math.abs(prefix.estimateSize() - spl.estimateSize()) < 2000);
+    final List<Number> keys = new ArrayList<Number>();
+    assertTrue(prefix.tryAdvance(keys::add));
+    assertNull("started", prefix.trySplit());
+    prefix.forEachRemaining(keys::add);
+    spl.forEachRemaining(keys::add);
+    assertNull("traversed", spl.trySplit());
+    assertEquals(0, spl.estimateSize());
+    final Spliterator<?> entries = map.stream().spliterator();
+    entries.forEachRemaining(e -> { });
+    assertNull("traversed", entries.trySplit());
+    final List<Number> iterated = new ArrayList<Number>();
+    for(final Number n : map.keySequence()) {
+      iterated.add(n);
+    }
+    assertEquals(iterated, keys);
+
+    final long sum = 9999L * 10000L;
+    assertEquals(sum, map.parallelStream().mapToLong(e -> e.getValue().longValue()).sum());
+    assertEquals(sum, map.valueSequence().parallelStream().mapToLong(
+        Number::longValue).sum());
+    assertEquals(map.size(), map.stream().count());
+    assertEquals(0, ImmutableMap.empty().parallelStream().count());
+    assertEquals(1, ImmutableMap.singleton(1, 1).parallelStream().count());
+  }
+
+  /** Tests the read-only {@link Map} view of a map. */
+  @Test
+  public void asMap() {
+    final Map<Integer, String> expected = new HashMap<Integer, String>();
+    ImmutableMap<Integer, String> map = ImmutableMap.empty();
+    for(int i = 0; i < 1000; i++) {
+      final String v = i % 10 == 0 ? null : "v" + i;
+      expected.put(i, v);
+      map = map.put(i, v);
+    }
+    expected.put(null, "null");
+    map = map.put(null, "null");
+    final Map<Integer, String> view = map.asMap();
+    assertEquals(expected, view);
+    assertEquals(view, expected);
+    assertEquals(expected.hashCode(), view.hashCode());
+    assertEquals(expected.keySet(), view.keySet());
+    assertEquals(new HashSet<String>(expected.values()), new HashSet<String>(view.values()));
+    assertEquals("v17", view.get(17));
+    assertEquals("null", view.get(null));
+    assertNull(view.get(20));
+    assertTrue(view.containsKey(20));
+    assertFalse(view.containsKey(1000));
+    assertFalse(view.containsKey("17"));
+    assertEquals("x", view.getOrDefault(1000, "x"));
+    assertNull(view.getOrDefault(20, "x"));
+    assertTrue(view.entrySet().contains(new SimpleImmutableEntry<Integer, String>(20, null)));
+    assertFalse(view.entrySet().contains(new SimpleImmutableEntry<Integer, String>(21, null)));
+    assertTrue(view.containsValue("v999"));
+    assertTrue(ImmutableMap.empty().asMap().isEmpty());
+    try {
+      view.put(1, "a");
+      fail();
+    } catch(final UnsupportedOperationException e) {
+      // expected
+    }
+    try {
+      view.keySet().clear();
+      fail();
+    } catch(final UnsupportedOperationException e) {
+      // expected
+    }
+  }
+
+  /** Tests single traversal updates, also of collision lists. */
+  @Test
+  public void update() {
+    ImmutableMap<Object, Integer> map = ImmutableMap.empty();
+    for(int i = 0; i < 1000; i++) {
+      map = map.update(i % 100, v -> v == null ? 1 : v + 1);
+      map = map.update((long) (i % 50), v -> v == null ? 1 : v + 1);
+    }
+    map = map.update("Aa", v -> 7).update("BB", v -> 8).update("Aa", v -> v * 2);
+    assertEquals(152, map.size());
+    for(int i = 0; i < 100; i++) {
+      assertEquals((Integer) 10, map.get(i));
+    }
+    for(int i = 0; i < 50; i++) {
+      assertEquals((Integer) 20, map.get((long) i));
+    }
+    assertEquals((Integer) 14, map.get("Aa"));
+    assertEquals((Integer) 8, map.get("BB"));
+    assertSame(map, map.update(17, v -> v));
+    assertSame(map, map.update(17L, v -> v));
+    assertSame(map, map.update("BB", v -> v));
+    assertNull(map.update(null, v -> v).get(null));
+    assertTrue(map.update(null, v -> v).containsKey(null));
+  }
+
+  /** Tests that deleting from a branch with a single child keeps the trie canonical. */
+  @Test
+  public void deleteSingleChild() {
+    final ImmutableMap<Integer, Integer> map = ImmutableMap.singleton(0, 0).put(32, 32);
+    assertEquals(ImmutableMap.singleton(32, 32), map.remove(0));
+    assertEquals(ImmutableMap.empty(), map.remove(0).remove(32));
+    assertEquals(ImmutableMap.singleton(0, 0), map.put(64, 64).remove(32).remove(64));
+  }
+
+  /** Tests the three-way merge against a merge of hash maps. */
+  @Test
+  public void merge3() {
+    final Random rnd = new Random(42);
+    for(final int n : new int[] { 0, 1, 5, 40, 3000 }) {
+      ImmutableMap<Integer, Integer> base = ImmutableMap.empty();
+      for(int i = 0; i < n; i++) {
+        base = base.put(rnd.nextInt(4 * n + 1), i);
+      }
+      ImmutableMap<Integer, Integer> left = base, right = base;
+      for(int i = 0; i < 1 + n / 10; i++) {
+        left = rnd.nextBoolean() ? left.put(rnd.nextInt(4 * n + 8), -i)
+            : left.remove(rnd.nextInt(4 * n + 8));
+        right = rnd.nextBoolean() ? right.put(rnd.nextInt(4 * n + 8), 1000 + i)
+            : right.remove(rnd.nextInt(4 * n + 8));
+      }
+      // same change on both sides is no conflict
+      left = left.put(-1, 7);
+      right = right.put(-1, 7);
+
+      final Map<Integer, Integer> exp = new HashMap<Integer, Integer>();
+      final Set<Integer> keys = new HashSet<Integer>();
+      for(final ImmutableMap<Integer, Integer> m : Arrays.asList(base, left, right)) {
+        m.forEach((k, v) -> keys.add(k));
+      }
+      for(final Integer k : keys) {
+        final Integer b = base.get(k), l = left.get(k), r = right.get(k);
+        final Integer v;
+        if(Objects.equals(b, l)) {
+          v = r;
+        } else if(Objects.equals(b, r) || Objects.equals(l, r)) {
+          v = l;
+        } else {
+          v = (l == null ? 0 : l) + (r == null ? 0 : r);
+        }
+        if(v != null) exp.put(k, v);
+      }
+      final ImmutableMap<Integer, Integer> merged = ImmutableMap.merge3(base, left, right,
+          (k, b, l, r) -> {
+            assertFalse(Objects.equals(l, r));
+            return (l == null ? 0 : l) + (r == null ? 0 : r);
+          });
+      assertEquals(ImmutableMap.<Integer, Integer>empty().putAll(exp), merged);
+      assertEquals(exp.size(), merged.size());
+      assertSame(left, ImmutableMap.merge3(base, left, base, null));
+      assertSame(right, ImmutableMap.merge3(base, base, right, null));
+    }
+  }
+
+  /**
+   * Tests writing and reading maps.
+   * @throws IOException exception
+   */
+  @Test
+  public void serialize() throws IOException {
+    for(final int n : new int[] { 0, 1, 2, 100, 20000 }) {
+      ImmutableMap<String, Integer> map = ImmutableMap.empty();
+      for(int i = 0; i < n; i++) {
+        map = map.put("k" + i, i);
+      }
+      // colliding keys
+      if(n > 0) map = map.put("Aa", -1).put("BB", -2);
+      final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      map.write(new DataOutputStream(bos), Serializer.STRING, Serializer.INT);
+      final ImmutableMap<String, Integer> read = ImmutableMap.read(
+          new DataInputStream(new ByteArrayInputStream(bos.toByteArray())),
+          Serializer.STRING, Serializer.INT);
+      assertEquals(map, read);
+      assertEquals(map.size(), read.size());
+    }
+
+    // keys are rehashed unless the serializer declares stable hash codes
+    final Serializer<Integer> unstable = new Serializer<Integer>() {
+      @Override
+      public void write(final DataOutput out, final Integer value) throws IOException {
+        Serializer.INT.write(out, value);
+      }
+
+      @Override
+      public Integer read(final DataInput in) throws IOException {
+        return Serializer.INT.read(in);
+      }
+    };
+    final ImmutableMap<Integer, Integer> map = mapOf(500);
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bos);
+    // corrupt the stored hash codes
+    out.writeByte(map.size() & 0x7F | 0x80);
+    out.writeByte(map.size() >>> 7);
+    map.forEach((k, v) -> {
+      try {
+        out.writeInt(k * 31);
+        unstable.write(out, k);
+        unstable.write(out, v);
+      } catch(final IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    });
+    assertEquals(map, ImmutableMap.read(
+        new DataInputStream(new ByteArrayInputStream(bos.toByteArray())), unstable, unstable));
+  }
+
+  /**
+   * Creates a map binding the integers to their negation.
+   * @param n number of bindings
+   * @return map
+   */
+  private static ImmutableMap<Integer, Integer> mapOf(final int n) {
+    ImmutableMap<Integer, Integer> map = ImmutableMap.empty();
+    for(int i = 0; i < n; i++) {
+      map = map.put(i, -i);
+    }
+    return map;
+  }
+
 }
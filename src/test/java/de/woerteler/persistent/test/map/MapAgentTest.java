@@ -0,0 +1,145 @@
+package de.woerteler.persistent.test.map;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import de.woerteler.persistent.Agent;
+import de.woerteler.persistent.map.ImmutableMap;
+import de.woerteler.persistent.map.MapAgent;
+
+/**
+ * Tests for {@link MapAgent} and {@link Agent}.
+ * @author Leo Woerteler
+ */
+public class MapAgentTest {
+  /**
+   * Tests the order of mixed messages from one thread.
+   * @throws Exception exception
+   */
+  @Test
+  public void order() throws Exception {
+    final ExecutorService exec = Executors.newSingleThreadExecutor();
+    try {
+      final MapAgent<Integer, Integer> agent =
+          new MapAgent<Integer, Integer>(ImmutableMap.<Integer, Integer>empty(), exec);
+      ImmutableMap<Integer, Integer> expected = ImmutableMap.empty();
+      for(int i = 0; i < 10000; i++) {
+        final int k = i % 777;
+        switch(i % 5) {
+          case 0:
+            agent.remove(k);
+            expected = expected.remove(k);
+            break;
+          case 1:
+            agent.send(m -> m.update(k, v -> v == null ? 0 : v + 1));
+            expected = expected.update(k, v -> v == null ? 0 : v + 1);
+            break;
+          default:
+            agent.put(k, i);
+            expected = expected.put(k, i);
+        }
+      }
+      assertEquals(expected, agent.sync().get());
+      assertEquals(expected, agent.get());
+      assertTrue(agent.versions() > 0);
+      assertTrue(agent.versions() <= 10000);
+
+      agent.send(m -> {
+        throw new IllegalStateException();
+      });
+      agent.put(-1, -1);
+      assertEquals((Integer) (-1), agent.sync().get().get(-1));
+      assertEquals(1, agent.failures());
+      assertTrue(agent.getError() instanceof IllegalStateException);
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  /**
+   * Tests concurrent senders.
+   * @throws InterruptedException exception
+   * @throws ExecutionException exception
+   */
+  @Test
+  public void concurrent() throws InterruptedException, ExecutionException {
+    final MapAgent<Integer, Integer> agent = new MapAgent<Integer, Integer>();
+    final Agent<Integer> counter = new Agent<Integer>(0);
+    final int threads = 4, n = 20000;
+    final List<Thread> ts = new ArrayList<Thread>();
+    for(int t = 0; t < threads; t++) {
+      final int id = t;
+      final Thread th = new Thread(() -> {
+        for(int i = 0; i < n; i++) {
+          agent.put(id * n + i, i);
+          counter.send(c -> c + 1);
+        }
+      });
+      ts.add(th);
+      th.start();
+    }
+    for(final Thread th : ts) {
+      th.join();
+    }
+    final ImmutableMap<Integer, Integer> map = agent.sync().get();
+    assertEquals(threads * n, map.size());
+    for(int i = 0; i < threads * n; i++) {
+      assertEquals((Integer) (i % n), map.get(i));
+    }
+    assertEquals((Integer) (threads * n), counter.sync().get());
+  }
+
+  /**
+   * Tests that failing keys in combined updates are skipped and recorded.
+   * @throws Exception exception
+   */
+  @Test
+  public void failingKeys() throws Exception {
+    final ExecutorService exec = Executors.newSingleThreadExecutor();
+    try {
+      final MapAgent<Object, Integer> agent =
+          new MapAgent<Object, Integer>(ImmutableMap.<Object, Integer>empty(), exec);
+      final Object bad = new Object() {
+        @Override
+        public int hashCode() {
+          throw new UnsupportedOperationException();
+        }
+      };
+      agent.put(1, 1);
+      agent.put(bad, 2);
+      agent.put(3, 3);
+      agent.remove(bad);
+      agent.remove(1);
+      final ImmutableMap<Object, Integer> map = agent.sync().get();
+      assertEquals(ImmutableMap.<Object, Integer>singleton(3, 3), map);
+      assertEquals(2, agent.failures());
+      assertTrue(agent.getError() instanceof UnsupportedOperationException);
+
+      // an update of the whole batch that fails completes the sync exceptionally
+      final Agent<Integer> broken = new Agent<Integer>(0, exec) {
+        @Override
+        protected Integer apply(final Integer s, final Object[] batch, final int from,
+            final int to) {
+          throw new IllegalStateException();
+        }
+      };
+      broken.send(c -> c + 1);
+      try {
+        broken.sync().get();
+        fail();
+      } catch(final ExecutionException ex) {
+        assertTrue(ex.getCause() instanceof IllegalStateException);
+      }
+      assertTrue(broken.failures() > 0);
+    } finally {
+      exec.shutdown();
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package de.woerteler.persistent.test.map;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import de.woerteler.persistent.Serializer;
+import de.woerteler.persistent.map.ImmutableMap;
+import de.woerteler.persistent.map.MappedMap;
+
+/**
+ * Tests for {@link MappedMap}.
+ * @author Leo Woerteler
+ */
+public class MappedMapTest {
+  /**
+   * Tests lookups in a mapped image file.
+   * @throws IOException exception
+   */
+  @Test
+  public void mapped() throws IOException {
+    ImmutableMap<String, Integer> m = ImmutableMap.empty();
+    for(int i = 0; i < 30000; i++) {
+      m = m.put("key" + i, i);
+    }
+    // colliding keys
+    final ImmutableMap<String, Integer> map = m.put("Aa", -1).put("BB", -2).put("C#", -3);
+    final Path file = Files.createTempFile("map", ".img");
+    try {
+      MappedMap.write(map, file, Serializer.STRING, Serializer.INT);
+      final MappedMap<String, Integer> mapped =
+          MappedMap.open(file, Serializer.STRING, Serializer.INT);
+      assertEquals(map.size(), mapped.size());
+      for(int i = 0; i < 30000; i++) {
+        assertEquals((Integer) i, mapped.get("key" + i));
+        assertFalse(mapped.containsKey("nokey" + i));
+      }
+      assertEquals((Integer) (-2), mapped.get("BB"));
+      assertNull(mapped.get("Ab"));
+      assertFalse(mapped.containsKey(null));
+
+      final int[] n = { 0 };
+      mapped.forEach((k, v) -> {
+        assertEquals(map.get(k), v);
+        n[0]++;
+      });
+      assertEquals(map.size(), n[0]);
+      assertEquals(map, mapped.toImmutableMap());
+      assertEquals(mapped, map);
+      assertEquals((Integer) 5, mapped.put("x", 5).get("x"));
+      assertEquals(map.size() - 1, mapped.remove("Aa").size());
+
+      // tiny segments, so that nodes and elements cross their boundaries
+      final MappedMap<String, Integer> segmented =
+          MappedMap.open(file, 64, Serializer.STRING, Serializer.INT);
+      for(int i = 0; i < 30000; i++) {
+        assertEquals((Integer) i, segmented.get("key" + i));
+        assertFalse(segmented.containsKey("nokey" + i));
+      }
+      assertEquals((Integer) (-3), segmented.get("C#"));
+      assertEquals(map, segmented.toImmutableMap());
+      try {
+        MappedMap.open(file, 48, Serializer.STRING, Serializer.INT);
+        fail();
+      } catch(final IllegalArgumentException ex) {
+        // expected
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /**
+   * Tests small, empty and malformed images.
+   * @throws IOException exception
+   */
+  @Test
+  public void images() throws IOException {
+    for(final ImmutableMap<Integer, Integer> map : new ImmutableMap[] {
+        ImmutableMap.empty(), ImmutableMap.singleton(1, 2), ImmutableMap.empty().put(null, 3) }) {
+      final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      final Serializer<Integer> ser = nullable(Serializer.INT, true);
+      MappedMap.write(map, bos, ser, ser);
+      final MappedMap<Integer, Integer> mapped =
+          MappedMap.wrap(ByteBuffer.wrap(bos.toByteArray()), ser, ser);
+      assertEquals(map.size(), mapped.size());
+      assertEquals(map, mapped.toImmutableMap());
+      assertNull(mapped.get(7));
+    }
+
+    try {
+      MappedMap.wrap(ByteBuffer.allocate(20), Serializer.INT, Serializer.INT);
+      fail();
+    } catch(final IOException ex) {
+      // expected
+    }
+    try {
+      MappedMap.write(ImmutableMap.<Integer, Integer>empty(), new ByteArrayOutputStream(),
+          nullable(Serializer.INT, false), Serializer.INT);
+      fail();
+    } catch(final IllegalArgumentException ex) {
+      // expected
+    }
+  }
+
+  /**
+   * Creates a serializer supporting {@code null}.
+   * @param ser serializer for non-{@code null} elements
+   * @param stable stable hash codes
+   * @return serializer
+   */
+  private static Serializer<Integer> nullable(final Serializer<Integer> ser,
+      final boolean stable) {
+    return new Serializer<Integer>() {
+      @Override
+      public void write(final DataOutput out, final Integer value) throws IOException {
+        out.writeBoolean(value != null);
+        if(value != null) ser.write(out, value);
+      }
+
+      @Override
+      public Integer read(final DataInput in) throws IOException {
+        return in.readBoolean() ? ser.read(in) : null;
+      }
+
+      @Override
+      public boolean stableHash() {
+        return stable;
+      }
+    };
+  }
+}
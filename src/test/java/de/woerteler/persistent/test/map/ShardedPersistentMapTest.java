@@ -0,0 +1,109 @@
+package de.woerteler.persistent.test.map;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import de.woerteler.persistent.map.ImmutableMap;
+import de.woerteler.persistent.map.ShardedPersistentMap;
+
+/**
+ * Tests for {@link ShardedPersistentMap}.
+ * @author Leo Woerteler
+ */
+public class ShardedPersistentMapTest {
+  /** Tests that snapshots are equal to maps built directly. */
+  @Test
+  public void snapshot() {
+    for(final int n : new int[] { 1, 2, 8, 32 }) {
+      final ShardedPersistentMap<Object, Integer> map =
+          new ShardedPersistentMap<Object, Integer>(n);
+      assertEquals(n, map.shards());
+      assertEquals(ImmutableMap.empty(), map.snapshot());
+      ImmutableMap<Object, Integer> expected = ImmutableMap.empty();
+      for(final Object k : new Object[] { 1, 33, 1L, "Aa", "BB", null }) {
+        map.put(k, 7);
+        expected = expected.put(k, 7);
+        assertEquals(expected, map.snapshot());
+        assertEquals(expected.hashCode(), map.snapshot().hashCode());
+      }
+      for(int i = 0; i < 5000; i++) {
+        map.put(i, i);
+        expected = expected.put(i, i);
+      }
+      assertEquals(expected, map.snapshot());
+      assertEquals(expected.size(), map.size());
+      assertEquals((Integer) 7, map.get("BB"));
+      assertTrue(map.containsKey(null));
+      for(int i = 0; i < 5000; i += 2) {
+        map.remove(i);
+        expected = expected.remove(i);
+      }
+      assertEquals(expected, map.snapshot());
+      assertEquals(expected, ShardedPersistentMap.from(n, expected).snapshot());
+      assertEquals((Integer) 8, map.update(1L, v -> v + 1));
+      assertEquals((Integer) 1, map.update(-1, v -> v == null ? 1 : v + 1));
+      final ImmutableMap<Object, Integer> snap = map.snapshot();
+      assertEquals(expected.size() + 1, snap.size());
+      for(final Object k : new Object[] { 1, 33, "Aa", "BB", null }) {
+        map.remove(k);
+      }
+      map.remove(1L);
+      map.remove(-1);
+      for(int i = 1; i < 5000; i += 2) {
+        map.remove(i);
+      }
+      assertEquals(ImmutableMap.empty(), map.snapshot());
+      assertEquals(0, map.snapshot().size());
+    }
+  }
+
+  /** Tests invalid numbers of shards. */
+  @Test(expected = IllegalArgumentException.class)
+  public void invalid() {
+    new ShardedPersistentMap<Object, Object>(12);
+  }
+
+  /**
+   * Tests concurrent writers and snapshots.
+   * @throws InterruptedException exception
+   */
+  @Test
+  public void concurrent() throws InterruptedException {
+    final ShardedPersistentMap<Integer, Integer> map =
+        new ShardedPersistentMap<Integer, Integer>();
+    final int threads = 6, n = 4000;
+    final List<Thread> ts = new ArrayList<Thread>();
+    for(int t = 0; t < threads; t++) {
+      final int id = t;
+      final Thread th = new Thread(() -> {
+        for(int i = 0; i < n; i++) {
+          map.update(i, v -> v == null ? 1 : v + 1);
+          map.put(n + id * n + i, i);
+        }
+      });
+      ts.add(th);
+      th.start();
+    }
+    while(ts.get(0).isAlive()) {
+      final ImmutableMap<Integer, Integer> snap = map.snapshot();
+      assertTrue(snap.size() <= n + threads * n);
+    }
+    for(final Thread th : ts) {
+      th.join();
+    }
+    final Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+    for(int i = 0; i < n; i++) {
+      expected.put(i, threads);
+      for(int t = 0; t < threads; t++) {
+        expected.put(n + t * n + i, i);
+      }
+    }
+    assertEquals(ImmutableMap.from(expected), map.snapshot());
+  }
+}
@@ -0,0 +1,94 @@
+package de.woerteler.persistent.test.map;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import de.woerteler.persistent.map.ImmutableMap;
+import de.woerteler.persistent.map.VersionedMap;
+
+/**
+ * Tests for {@link VersionedMap}.
+ * @author Leo Woerteler
+ */
+public class VersionedMapTest {
+  /** Tests reads by version and time. */
+  @Test
+  public void timeTravel() {
+    final long[] now = { 1000 };
+    final VersionedMap<Integer, Integer> vm =
+        new VersionedMap<Integer, Integer>(ImmutableMap.<Integer, Integer>empty(), () -> now[0]);
+    for(int i = 1; i <= 100; i++) {
+      final int k = i;
+      now[0] += 10;
+      assertEquals(i, vm.commit(m -> m.put(k % 7, k)));
+    }
+    assertEquals(100, vm.version());
+    assertEquals(101, vm.versions());
+    assertEquals(0, vm.asOf(0).size());
+    for(int i = 1; i <= 100; i++) {
+      assertEquals((Integer) i, vm.get(i % 7, i));
+      assertEquals(Math.min(i, 7), vm.asOf(i).size());
+    }
+    assertEquals(0, vm.versionAt(1000));
+    assertEquals(4, vm.versionAt(1045));
+    assertEquals(100, vm.versionAt(5000));
+    assertSame(vm.asOf(50), vm.asOfTime(1500));
+    assertSame(vm.current(), vm.asOf(100));
+    try {
+      vm.versionAt(999);
+      fail();
+    } catch(final IllegalArgumentException ex) {
+      // expected
+    }
+    try {
+      vm.asOf(101);
+      fail();
+    } catch(final IllegalArgumentException ex) {
+      // expected
+    }
+  }
+
+  /** Tests the retention policies. */
+  @Test
+  public void retention() {
+    final long[] now = { 0 };
+    final VersionedMap<Integer, Integer> vm =
+        new VersionedMap<Integer, Integer>(ImmutableMap.<Integer, Integer>empty(), () -> now[0]);
+    for(int i = 0; i < 1000; i++) {
+      final int k = i;
+      now[0]++;
+      vm.commit(m -> m.put(k, k));
+    }
+    final long all = vm.estimatedBytes();
+    assertTrue(all > 0);
+
+    vm.retainVersions(100);
+    assertEquals(100, vm.versions());
+    assertEquals(901, vm.oldestVersion());
+    assertEquals((Integer) 950, vm.get(950, 951));
+    assertNull(vm.get(950, 950));
+    try {
+      vm.asOf(900);
+      fail();
+    } catch(final IllegalArgumentException ex) {
+      // expected
+    }
+    assertTrue(vm.estimatedBytes() < all);
+
+    vm.retainAge(10, TimeUnit.MILLISECONDS);
+    assertEquals(11, vm.versions());
+    assertEquals(990, vm.oldestVersion());
+
+    // only nodes of the dropped versions are released, the latest trie stays
+    final VersionedMap<Integer, Integer> single =
+        new VersionedMap<Integer, Integer>(vm.current()).retainVersions(1);
+    final long latest = single.estimatedBytes();
+    vm.retainBytes(0);
+    assertEquals(1, vm.versions());
+    assertEquals(1000, vm.version());
+    assertEquals(latest, vm.estimatedBytes());
+  }
+}